@@ -176,6 +176,7 @@ public class Aggregate extends Operator {
 	// some code goes here
         super.close();
         aggregatorIterator.close();
+        opIterator.close();
     }
 
     @Override
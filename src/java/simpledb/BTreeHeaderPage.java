@@ -13,6 +13,8 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	/** LSN of the last update record logged for this page. */
+	private volatile long lsn;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -264,6 +266,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
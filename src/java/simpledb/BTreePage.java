@@ -13,6 +13,8 @@ import java.io.*;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	/** LSN of the last update record logged for this page. */
+	protected volatile long lsn;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -128,6 +130,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
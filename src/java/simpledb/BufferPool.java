@@ -1,11 +1,20 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,8 +23,39 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
- * 
+ * locks to read/write the page. The locks themselves are kept by a
+ * {@link LockManager}.
+ * <p>
+ * The page table is split into partitions by a hash of the page ID. Each
+ * partition has its own latch, its own pages and its own replacement
+ * policy, so requests for pages in different partitions never wait for each
+ * other. Only the number of bytes
+ * cached is shared: a page is read into its own partition, but the page
+ * evicted to make room for it may come from another partition that holds
+ * more than its share of the pool. No thread ever holds two partition
+ * latches at once.
+ * <p>
+ * A caller that keeps using a page across calls, such as an iterator on
+ * the page it is reading, pins it with {@link #pinPage} and unpins it when
+ * it moves on. A pinned page is never evicted. Pins a transaction still
+ * holds when it completes are released and reported as leaks (see
+ * {@link #getPinLeaks}).
+ * <p>
+ * An off-heap pool keeps page images in a {@link FrameArena} allocated
+ * up front, one frame per page, instead of a byte array per page read. A
+ * page read into a frame decodes its tuples from there, and the frame is
+ * reused once the page has left the pool and is no longer pinned.
+ * <p>
+ * With the page cleaner on (see {@link #setPageCleaner}), a commit only
+ * logs the transaction's pages; the pages stay in the pool as committed
+ * but unwritten, and a background thread writes them to disk afterwards.
+ * Eviction prefers clean pages, and writes an unwritten page itself only
+ * if there is nothing else to evict.
+ * <p>
+ * A pool can be resized while in use (see {@link #resize}). The pool of the
+ * {@link Database} takes its memory from the {@link MemoryBudget} it shares
+ * with query operators, and gives back pages when an operator needs them.
+ *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
@@ -23,53 +63,1122 @@ public class BufferPool {
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
-    
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    public static int numPages;
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_PREFETCH_WINDOW = 8;
+
+    /**
+     * Default bound on the pages of the sequential-scan ring; a pool never
+     * gives the ring more than a quarter of its pages by default.
+     */
+    public static final int DEFAULT_SCAN_RING_PAGES = 16;
+
+    /** Most partitions a pool is split into by default. */
+    public static final int MAX_DEFAULT_PARTITIONS = 16;
+
+    /** Fewest pages per partition a pool is split into by default. */
+    public static final int MIN_PARTITION_PAGES = 16;
+
+    /**
+     * Background thread that reads prefetched pages. Shared by all
+     * BufferPool instances so that resetting the pool does not leak threads.
+     */
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Background thread that writes committed pages for the page cleaner.
+     * Shared by all BufferPool instances, like the prefetch thread.
+     */
+    private static final ExecutorService cleaner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-cleaner");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The number of pages the pool may cache right now. */
+    private volatile int numPages;
+    /** The size the pool was given; it grows back to it after giving pages back. */
+    private volatile int targetPages;
+    /** Guards changes to numPages and targetPages. */
+    private final Object sizing = new Object();
+    /** The budget the pool's capacity is reserved from, or null if none. */
+    private MemoryBudget budget;
+
+    private final Partition[] partitions;
+
+    private final LockManager lockManager;
+
+    private volatile int prefetchWindow = DEFAULT_PREFETCH_WINDOW;
+    /** Prefetched pages that no getPage call has asked for yet. */
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    /** Pages being read by prefetch; set to true if the page leaves the pool meanwhile. */
+    private final Map<PageId, Boolean> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong prefetchIssued = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+
+    /** Bytes charged for all cached pages: each the page size of its file. */
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private volatile int scanRingPages;
+
+    /** Frames page images are read into, or null to read them onto the heap. */
+    private final FrameArena arena;
+
+    /** Pins one transaction holds on one page. */
+    private static final class Pins {
+        int count;
+        /** Where the first pin was taken, if pin tracking was on. */
+        Throwable site;
+    }
+
+    /** The pins each transaction holds, by page. */
+    private final Map<TransactionId, Map<PageId, Pins>> pinsByTransaction = new ConcurrentHashMap<>();
+    private volatile boolean trackPins = Boolean.getBoolean("simpledb.trackPins");
+    private final List<String> pinLeaks = Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * Transactions refused a lock. The exception may have unwound iterators
+     * that had pages pinned, so their pins are not reported as leaks.
+     */
+    private final Set<TransactionId> refused = ConcurrentHashMap.newKeySet();
 
-    public static Map<PageId, Page> pageID2Page;
+    private volatile boolean pageCleaner = Boolean.getBoolean("simpledb.pageCleaner");
+    /** Set while a cleaning pass is queued but has not started. */
+    private final AtomicBoolean cleaningQueued = new AtomicBoolean();
+    /** Pages each committing transaction has appended update records for. */
+    private final Map<TransactionId, Set<PageId>> loggedBy = new ConcurrentHashMap<>();
+    /** Number of cached pages committed but not yet written, in all partitions. */
+    private final AtomicInteger unwrittenPages = new AtomicInteger();
+    private final AtomicLong cleanerWrites = new AtomicLong();
+    private final AtomicLong evictionWrites = new AtomicLong();
+    private final AtomicLong evictionFailures = new AtomicLong();
 
-    public static Map<PageId, Permissions> permissionsMap;
-    public static Map<PageId, Set<TransactionId>> transactionIdMap;
-    public static Map<TransactionId, Set<PageId>> transactionIdSetMap;
-    public static Lock lock;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages of the default
+     * size, i.e. numPages * getPageSize() bytes. Each cached page is charged
+     * the page size of its file (see {@link DbFile#getPageSize()}), so a
+     * pool holds fewer pages of tables with larger pages.
+     * <p>
+     * The pool is split into one partition per MIN_PARTITION_PAGES pages, up
+     * to MAX_DEFAULT_PARTITIONS. Pages are replaced with the policy named by
+     * the system property simpledb.replacement (see
+     * {@link ReplacementPolicy#forName}), CLOCK by default.
+     * <p>
+     * Pages read by sequential scans go through a small ring instead (see
+     * {@link #setScanRingPages}), so that a scan of a large table does not
+     * push the working set of other transactions out of the pool.
+     * <p>
+     * The pool keeps page images off the heap if the system property
+     * simpledb.offheap is true.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, Math.max(1, Math.min(MAX_DEFAULT_PARTITIONS, numPages / MIN_PARTITION_PAGES)));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * specified number of partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions the number of partitions, at least 1
+     */
+    public BufferPool(int numPages, int numPartitions) {
+        this(numPages, numPartitions, Boolean.getBoolean("simpledb.offheap"));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * specified number of partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions the number of partitions, at least 1
+     * @param offHeap true to read page images into a FrameArena of numPages
+     *   frames of the default page size, allocated now
+     */
+    public BufferPool(int numPages, int numPartitions, boolean offHeap) {
+        this(numPages, numPartitions, pages -> ReplacementPolicy.forName(
+                System.getProperty("simpledb.replacement", "clock"), pages), offHeap);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in a single
+     * partition and picks pages to evict with the specified replacement
+     * policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy a new policy, not shared with any other pool
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, 1, pages -> policy, false);
+    }
+
+    private BufferPool(int numPages, int numPartitions, IntFunction<ReplacementPolicy> policies,
+            boolean offHeap) {
         // some code goes here
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one partition");
+        }
         this.numPages = numPages;
-//        pageID2Page = new ConcurrentHashMap<>();
-//        permissionsMap = new ConcurrentHashMap<>();
-//        transactionIdMap = new ConcurrentHashMap<>();
-//        transactionIdSetMap = new ConcurrentHashMap<>();
-        pageID2Page = new ConcurrentHashMap<>();
-        permissionsMap = new HashMap<>();
-        transactionIdMap = new HashMap<>();
-        transactionIdSetMap = new HashMap<>();
-        lock = new ReentrantLock();
-    }
-    
+        this.targetPages = numPages;
+        this.scanRingPages = Math.min(DEFAULT_SCAN_RING_PAGES, numPages / 4);
+        this.partitions = new Partition[numPartitions];
+        int share = (numPages + numPartitions - 1) / numPartitions;
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition(policies.apply(share));
+        }
+        this.lockManager = new LockManager(numPartitions);
+        this.arena = offHeap && numPages > 0 ? new FrameArena(numPages, getPageSize()) : null;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
-    
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPool.pageSize = pageSize;
     }
-    
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void resetPageSize() {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** @return the number of bytes of pages this pool may cache */
+    public long getCapacityBytes() {
+        return (long) numPages * getPageSize();
+    }
+
+    /** @return the number of bytes of pages this pool caches right now */
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    /** @return the lock manager that keeps this pool's page locks */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the arena page images are read into, or null if they are kept on the heap */
+    public FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /** @return the number of partitions the pool is split into */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /** @return the number of pages this pool may cache right now */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of pages the pool was sized to, more than
+     *   getNumPages() while pages given back to the budget are not taken again
+     */
+    public int getTargetPages() {
+        return targetPages;
+    }
+
+    /**
+     * Change the number of pages this pool may cache, keeping what it caches.
+     * Pages beyond the new size are evicted now, as far as there are clean,
+     * unpinned pages to evict; the rest go as the pool next needs room.
+     * <p>
+     * A pool with a memory budget grows only by as many pages as the budget
+     * has free, and takes the rest as it needs room and memory is free.
+     *
+     * @param pages the new size, at least 1
+     */
+    public void resize(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        }
+        synchronized (sizing) {
+            targetPages = pages;
+            if (pages < numPages) {
+                release(numPages - pages);
+            }
+        }
+        if (pages > numPages) {
+            regrow();
+        } else {
+            trim();
+        }
+    }
+
+    /**
+     * Reserve the pool's capacity from budget, giving back what it held in
+     * the budget it had before, if any.
+     */
+    void setMemoryBudget(MemoryBudget budget) {
+        synchronized (sizing) {
+            if (this.budget != null) {
+                this.budget.release(MemoryBudget.BUFFER_POOL, getCapacityBytes());
+            }
+            this.budget = budget;
+            if (budget != null) {
+                budget.reserve(MemoryBudget.BUFFER_POOL, getCapacityBytes());
+            }
+        }
+    }
+
+    /** Shrink by n pages, giving their memory back to the budget. */
+    private void release(int n) {
+        numPages -= n;
+        if (budget != null) {
+            budget.release(MemoryBudget.BUFFER_POOL, (long) n * getPageSize());
+        }
+    }
+
+    /**
+     * Give back pages to the budget for an operator, and evict what no
+     * longer fits. The pool never shrinks below a quarter of the size it was
+     * given; if it cannot give back all the bytes wanted, it gives none.
+     *
+     * @param bytes the number of bytes wanted
+     * @return the number of bytes given back
+     */
+    long reclaim(long bytes) {
+        int n;
+        synchronized (sizing) {
+            n = (int) ((bytes + getPageSize() - 1) / getPageSize());
+            if (n <= 0 || n > numPages - Math.max(1, targetPages / 4)) {
+                return 0;
+            }
+            release(n);
+        }
+        trim();
+        return (long) n * getPageSize();
+    }
+
+    /**
+     * Grow back toward the size the pool was given by as many pages as the
+     * budget has free.
+     *
+     * @return true if the pool grew
+     */
+    private boolean regrow() {
+        if (numPages >= targetPages) {
+            return false;
+        }
+        synchronized (sizing) {
+            int n = targetPages - numPages;
+            if (n <= 0) {
+                return false;
+            }
+            if (budget != null) {
+                n = (int) Math.min(n, budget.getAvailable() / getPageSize());
+                if (n <= 0 || !budget.reserveIfFree(MemoryBudget.BUFFER_POOL, (long) n * getPageSize())) {
+                    return false;
+                }
+            }
+            numPages += n;
+            return true;
+        }
+    }
+
+    /** Evict clean pages until the pool fits its size or none is left. */
+    private void trim() {
+        while (cachedBytes.get() > getCapacityBytes()) {
+            boolean evicted = false;
+            for (int i = 0; i < partitions.length && !evicted; i++) {
+                evicted = partitions[i].evictOne(false) || partitions[i].evictOne(true);
+            }
+            if (!evicted) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a page of the specified size fits without evicting,
+     * growing the pool back toward its size first if it gave pages back.
+     */
+    private boolean hasRoomFor(int bytes) {
+        long cached = cachedBytes.get();
+        return cached == 0 || cached + bytes <= getCapacityBytes() || (regrow() && hasRoomFor(bytes));
+    }
+
+    private Partition partitionOf(PageId pid) {
+        // page IDs of one table differ only in their low bits; spread them
+        int h = pid.hashCode() * 0x9E3779B9;
+        return partitions[Math.floorMod(h ^ (h >>> 16), partitions.length)];
+    }
+
+    /**
+     * One shard of the pool: the cached pages and the replacement state for
+     * the page IDs that hash to it. All of it is guarded by latch.
+     */
+    private final class Partition {
+        final ReentrantLock latch = new ReentrantLock();
+
+        final Map<PageId, Page> pages = new HashMap<>();
+        /** Bytes charged for each cached page: the page size of its file. */
+        final Map<PageId, Integer> charged = new HashMap<>();
+        /** Bytes charged for all pages of this partition. */
+        volatile long bytes;
+
+        final ReplacementPolicy policy;
+        /** Cached pages decoded from a memory-mapped file. */
+        final Set<PageId> mappedPages = new HashSet<>();
+        /**
+         * Pages read by sequential scans, oldest first. The replacement policy
+         * does not know about these pages until a non-sequential getPage asks
+         * for one.
+         */
+        final LinkedHashSet<PageId> ring = new LinkedHashSet<>();
+        /** Number of pins on each pinned page, by any transaction. */
+        final Map<PageId, Integer> pins = new HashMap<>();
+        /** The arena frame holding the image of each cached page read into one. */
+        final Map<PageId, ByteBuffer> frames = new HashMap<>();
+        /**
+         * Frames of pages that left the pool while pinned, to be released
+         * when the last pin goes.
+         */
+        final Map<PageId, List<ByteBuffer>> retired = new HashMap<>();
+        /**
+         * Cached pages whose committed contents are logged but not yet
+         * written to disk, oldest first.
+         */
+        final Set<PageId> unwritten = new LinkedHashSet<>();
+        /**
+         * LSN of the first update record of each cached page that is logged
+         * but not yet on disk: the dirty page table of a checkpoint.
+         */
+        final Map<PageId, Long> recLsn = new HashMap<>();
+
+        Partition(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        /** Record that the committed contents of pid are not on disk yet. */
+        void markUnwritten(PageId pid) {
+            if (unwritten.add(pid)) {
+                unwrittenPages.incrementAndGet();
+            }
+        }
+
+        /**
+         * Append an update record for page, cached under pid, and note its
+         * LSN if the page has no record that is not on disk yet.
+         */
+        void logUpdate(PageId pid, Page page) throws IOException {
+            Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+            recLsn.putIfAbsent(pid, page.getLSN());
+        }
+
+        /**
+         * Record that pid needs no writing any more.
+         * @return true if it was unwritten
+         */
+        boolean markWritten(PageId pid) {
+            recLsn.remove(pid);
+            if (!unwritten.remove(pid)) {
+                return false;
+            }
+            unwrittenPages.decrementAndGet();
+            return true;
+        }
+
+        /** Cache page under pid, charging it the page size of its file. */
+        void cache(PageId pid, Page page) {
+            Page replaced = pages.put(pid, page);
+            if (replaced != null && replaced != page) {
+                releaseFrame(pid);
+            }
+            charge(pid, false);
+        }
+
+        /**
+         * Like cache, unless a page is already cached under pid.
+         * @param sequential true to put a newly cached page in the scan ring
+         * @param frame the arena frame page was read into, or null
+         * @return the page already cached, or null if page was added
+         */
+        Page cacheIfAbsent(PageId pid, Page page, boolean sequential, ByteBuffer frame) {
+            Page cached = pages.putIfAbsent(pid, page);
+            if (cached == null) {
+                charge(pid, sequential);
+                if (frame != null) {
+                    frames.put(pid, frame);
+                }
+            } else if (frame != null) {
+                arena.release(frame);
+            }
+            return cached;
+        }
+
+        /**
+         * Give back the frame of the page cached under pid, once no one has
+         * the page pinned.
+         */
+        void releaseFrame(PageId pid) {
+            ByteBuffer frame = frames.remove(pid);
+            if (frame == null) {
+                return;
+            }
+            if (pins.containsKey(pid)) {
+                retired.computeIfAbsent(pid, k -> new ArrayList<>()).add(frame);
+            } else {
+                arena.release(frame);
+            }
+        }
+
+        private void charge(PageId pid, boolean sequential) {
+            int b = Database.getCatalog().getDatabaseFile(pid.getTableId()).getPageSize();
+            if (charged.putIfAbsent(pid, b) == null) {
+                bytes += b;
+                cachedBytes.addAndGet(b);
+                Page page = pages.get(pid);
+                if (page instanceof HeapPage && ((HeapPage) page).isMapped()) {
+                    mappedPages.add(pid);
+                }
+                if (sequential && scanRingPages > 0) {
+                    ring.add(pid);
+                } else {
+                    policy.pageAdded(pid);
+                }
+            }
+        }
+
+        /** Drop pid from the cache and stop charging for it. */
+        Page uncache(PageId pid) {
+            Page page = pages.remove(pid);
+            releaseFrame(pid);
+            markWritten(pid);
+            Integer b = charged.remove(pid);
+            if (b != null) {
+                bytes -= b;
+                cachedBytes.addAndGet(-b);
+                mappedPages.remove(pid);
+                if (!ring.remove(pid)) {
+                    policy.pageRemoved(pid);
+                }
+            }
+            return page;
+        }
+
+        /**
+         * Record a hit on pid. A ring page asked for by anything but a
+         * sequential scan joins the main pool, where the replacement policy
+         * sees it from then on.
+         */
+        void accessed(PageId pid, boolean sequential) {
+            if (!ring.contains(pid)) {
+                policy.pageAccessed(pid);
+            } else if (!sequential) {
+                ring.remove(pid);
+                policy.pageAdded(pid);
+            }
+        }
+
+        boolean isClean(PageId pid) {
+            Page page = pages.get(pid);
+            return page != null && page.isDirty() == null;
+        }
+
+        boolean evictable(PageId pid) {
+            return isClean(pid) && !unwritten.contains(pid) && !prefetched.contains(pid)
+                    && !pins.containsKey(pid);
+        }
+
+        /** Returns true if pid is an unused prefetch that no one has pinned. */
+        boolean unusedPrefetch(PageId pid) {
+            return prefetched.contains(pid) && !pins.containsKey(pid);
+        }
+
+        /** This partition's share of the scan ring. */
+        int ringPages() {
+            return (scanRingPages + partitions.length - 1) / partitions.length;
+        }
+
+        /** Returns true if the scan ring holds as many pages as it may. */
+        boolean ringFull() {
+            return scanRingPages > 0 && ring.size() >= ringPages();
+        }
+
+        /** Returns the oldest ring page accepted by evictable, or null. */
+        PageId ringVictim(Predicate<PageId> evictable) {
+            for (PageId pid : ring) {
+                if (evictable.test(pid)) {
+                    return pid;
+                }
+            }
+            return null;
+        }
+
+        private void evict(PageId pid) {
+            uncache(pid);
+            removed(pid);
+        }
+
+        /**
+         * Make room for a page a sequential scan reads by recycling the
+         * oldest clean ring page, if the ring is full.
+         * @return true if a page was evicted
+         */
+        boolean recycleRingPage() {
+            latch.lock();
+            try {
+                if (!ringFull()) {
+                    return false;
+                }
+                PageId victim = ringVictim(this::evictable);
+                if (victim == null) {
+                    return false;
+                }
+                evict(victim);
+                return true;
+            } finally {
+                latch.unlock();
+            }
+        }
+
+        /**
+         * Evict one page for evictPage.
+         *
+         * @param unusedPrefetches false to pick among clean pages no one is
+         *   about to ask for, true to pick among prefetched pages
+         * @return true if a page was evicted
+         */
+        boolean evictOne(boolean unusedPrefetches) {
+            latch.lock();
+            try {
+                PageId victim = null;
+                if (unusedPrefetches) {
+                    victim = policy.victim(this::unusedPrefetch);
+                    if (victim == null) {
+                        victim = ringVictim(this::unusedPrefetch);
+                    }
+                } else {
+                    if (ring.size() > ringPages()) {
+                        victim = ringVictim(this::evictable);
+                    }
+                    if (victim == null) {
+                        for (PageId pageId : mappedPages) {
+                            if (evictable(pageId)) {
+                                victim = pageId;
+                                break;
+                            }
+                        }
+                    }
+                    if (victim == null) {
+                        victim = policy.victim(this::evictable);
+                    }
+                    if (victim == null) {
+                        victim = ringVictim(this::evictable);
+                    }
+                }
+                if (victim == null) {
+                    return false;
+                }
+                evict(victim);
+                return true;
+            } finally {
+                latch.unlock();
+            }
+        }
+
+        /**
+         * Evict a page a prefetch may replace: one that is clean, is not
+         * itself an unused prefetch, and is not exclusively locked by a
+         * transaction that is modifying it.
+         * @return true if a page was evicted
+         */
+        boolean evictForPrefetch() {
+            latch.lock();
+            try {
+                PageId victim = policy.victim(pid -> evictable(pid) && !lockManager.isExclusivelyLocked(pid));
+                if (victim == null) {
+                    return false;
+                }
+                evict(victim);
+                return true;
+            } finally {
+                latch.unlock();
+            }
+        }
+
+        /**
+         * Write the oldest unwritten page that no one has pinned or locked
+         * for writing, and evict it.
+         * @return true if a page was evicted
+         */
+        boolean evictUnwritten() throws IOException {
+            TransactionId writer = new TransactionId();
+            latch.lock();
+            try {
+                for (PageId pid : unwritten) {
+                    if (pins.containsKey(pid) || !isClean(pid)
+                            || !lockManager.tryAcquire(writer, pid, Permissions.READ_ONLY)) {
+                        continue;
+                    }
+                    try {
+                        write(pages.get(pid));
+                    } finally {
+                        lockManager.release(writer, pid);
+                    }
+                    evict(pid);
+                    return true;
+                }
+                return false;
+            } finally {
+                latch.unlock();
+            }
+        }
+    }
+
+    /** @return the number of getPage calls that found the page cached */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of getPage calls that had to read the page */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the most pages sequential scans may hold at once */
+    public int getScanRingPages() {
+        return scanRingPages;
+    }
+
+    /**
+     * Set the number of pages sequential scans may hold at once. Pages a
+     * scan reads go into a ring of this many pages; once it is full, each
+     * page the scan reads replaces the oldest page in the ring instead of
+     * a page of the main pool. A bound of 0 turns the ring off, so that
+     * scans compete with every other access for the whole pool. Pages
+     * already in the ring stay there.
+     * <p>
+     * Each partition keeps its own share of the ring.
+     */
+    public void setScanRingPages(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative scan ring size");
+        }
+        scanRingPages = pages;
+    }
+
+    /** @return the number of pages a sequential scan reads ahead */
+    public int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    /**
+     * Set the number of pages a sequential scan reads ahead of the page it
+     * is on. A window of 0 turns read-ahead off.
+     */
+    public void setPrefetchWindow(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative prefetch window");
+        }
+        prefetchWindow = pages;
+    }
+
+    /** @return true if commits leave their pages for the page cleaner to write */
+    public boolean isPageCleanerOn() {
+        return pageCleaner;
+    }
+
+    /**
+     * Turn the page cleaner on or off. It is off unless the system property
+     * simpledb.pageCleaner is true.
+     * <p>
+     * With the cleaner on, committing a transaction appends an update record
+     * for each page it dirtied, which the forced commit record makes durable
+     * (see {@link Transaction#commit}), but does not write the pages. They
+     * stay cached as unwritten until a background pass writes them, which it
+     * does only while no transaction holds a write lock on them; once more
+     * than a quarter of the pool is unwritten, a committing transaction runs
+     * such a pass itself. The log is forced before any page is written, so
+     * a page never reaches disk ahead of its update record. Committed pages
+     * still unwritten when the system goes down are redone from the log by
+     * {@link LogFile#recover}.
+     */
+    public void setPageCleaner(boolean on) {
+        pageCleaner = on;
+    }
+
+    /** @return the number of pages written by the page cleaner */
+    public long getCleanerWrites() {
+        return cleanerWrites.get();
+    }
+
+    /**
+     * @return the number of unwritten pages eviction had to write because
+     *   there was no clean page to evict
+     */
+    public long getEvictionWrites() {
+        return evictionWrites.get();
+    }
+
+    /** @return the number of times eviction found no page to evict */
+    public long getEvictionFailures() {
+        return evictionFailures.get();
+    }
+
+    /** @return the number of cached pages committed but not yet written */
+    public int getUnwrittenPages() {
+        return unwrittenPages.get();
+    }
+
+    /**
+     * Return the dirty page table for a checkpoint: the cached pages with
+     * update records not on disk yet, and the LSN of the first such record
+     * of each. A record logged after this returns may be missing.
+     */
+    Map<PageId, Long> dirtyPages() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Partition part : partitions) {
+            part.latch.lock();
+            try {
+                dirty.putAll(part.recLsn);
+            } finally {
+                part.latch.unlock();
+            }
+        }
+        return dirty;
+    }
+
+    /** Queue a cleaning pass unless one is queued already. */
+    void scheduleCleaning() {
+        if (!cleaningQueued.compareAndSet(false, true)) {
+            return;
+        }
+        cleaner.execute(() -> {
+            cleaningQueued.set(false);
+            // skip passes left over from a pool that has since been replaced
+            if (Database.getBufferPool() != this) {
+                return;
+            }
+            try {
+                clean();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Write every unwritten page no transaction holds a write lock on. A
+     * page is written without holding its partition's latch; a shared lock
+     * taken for the pass keeps writers out meanwhile.
+     */
+    private void clean() throws IOException {
+        TransactionId writer = new TransactionId();
+        for (Partition part : partitions) {
+            List<PageId> batch;
+            part.latch.lock();
+            try {
+                batch = new ArrayList<>(part.unwritten);
+            } finally {
+                part.latch.unlock();
+            }
+            for (PageId pid : batch) {
+                if (!lockManager.tryAcquire(writer, pid, Permissions.READ_ONLY)) {
+                    continue;
+                }
+                try {
+                    Page page;
+                    part.latch.lock();
+                    try {
+                        page = part.pages.get(pid);
+                        if (page == null || !part.unwritten.contains(pid) || page.isDirty() != null) {
+                            continue;
+                        }
+                    } finally {
+                        part.latch.unlock();
+                    }
+                    write(page);
+                    part.latch.lock();
+                    try {
+                        if (part.pages.get(pid) == page && page.isDirty() == null) {
+                            part.markWritten(pid);
+                        }
+                    } finally {
+                        part.latch.unlock();
+                    }
+                    // counted only now, for evictPage to notice the page is clean
+                    cleanerWrites.incrementAndGet();
+                } finally {
+                    lockManager.release(writer, pid);
+                }
+            }
+        }
+    }
+
+    /** Wait until every cleaning pass queued so far has finished. */
+    static void awaitCleaning() throws InterruptedException {
+        try {
+            cleaner.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write page to its file, once the log is on disk through the last
+     * update record of the page. Later records need not be.
+     */
+    private static void write(Page page) throws IOException {
+        if (page.getLSN() > 0) {
+            Database.getLogFile().forceTo(page.getLSN());
+        }
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+    }
+
+    /**
+     * Append an update record for each page tid dirtied that has none yet.
+     * The log is not forced: the commit record that follows forces the
+     * records with it, and a page is only written once the log is on disk
+     * through its record (see {@link #write}).
+     */
+    private void logUpdates(TransactionId tid) throws IOException {
+        Set<PageId> done = loggedBy.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet());
+        for (PageId pid : lockManager.pagesLockedBy(tid)) {
+            Partition part = partitionOf(pid);
+            part.latch.lock();
+            try {
+                Page page = part.pages.get(pid);
+                if (page != null && page.isDirty() != null && done.add(pid)) {
+                    part.logUpdate(pid, page);
+                }
+            } finally {
+                part.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Log the pages tid dirtied, if flushPages has not, and leave them
+     * cached as committed but unwritten for the page cleaner.
+     *
+     * @return true if tid has unwritten pages locked, which a cleaning pass
+     *   skips until tid releases its locks
+     */
+    private boolean commitPages(TransactionId tid) throws IOException {
+        logUpdates(tid);
+        Set<PageId> done = loggedBy.remove(tid);
+        boolean unwritten = false;
+        for (PageId pid : lockManager.pagesLockedBy(tid)) {
+            Partition part = partitionOf(pid);
+            part.latch.lock();
+            try {
+                Page page = part.pages.get(pid);
+                if (page != null && page.isDirty() != null && done.contains(pid)) {
+                    page.markDirty(false, null);
+                    page.setBeforeImage();
+                    part.markUnwritten(pid);
+                }
+                unwritten |= part.unwritten.contains(pid);
+            } finally {
+                part.latch.unlock();
+            }
+        }
+        return unwritten;
+    }
+
+    /**
+     * Read the specified page into the buffer pool in the background, so a
+     * later getPage for it is a hit. No lock is taken; getPage still locks
+     * the page when it is actually used.
+     * <p>
+     * The request is dropped if the page is already cached. If the pool is
+     * full, the prefetch only evicts a cold page (see
+     * Partition.evictForPrefetch) and is dropped if there is none. The page
+     * is read without holding any latch, so if the same page leaves the
+     * pool while the read is in flight the result is thrown away rather
+     * than risk reinstalling a copy older than one that was just flushed.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetch(PageId pid) {
+        prefetch(pid, null);
+    }
+
+    /**
+     * Like {@link #prefetch(PageId)}, on behalf of the iterator that ra
+     * tracks. The request is dropped if by the time the prefetch thread gets
+     * to it the iterator has already moved past the page. The page goes into
+     * the scan ring, like the pages the iterator reads itself.
+     */
+    public void prefetch(PageId pid, ReadAhead ra) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Partition part = partitionOf(pid);
+        prefetcher.execute(() -> {
+            // the page cache is shared by all pools; skip requests left over
+            // from a pool that has since been replaced
+            if (Database.getBufferPool() != this || (ra != null && !ra.wants(pid))
+                    || inFlight.putIfAbsent(pid, Boolean.FALSE) != null) {
+                return;
+            }
+            ByteBuffer frame = null;
+            try {
+                if (cached(part, pid)) {
+                    return;
+                }
+                boolean sequential = ra != null && scanRingPages > 0;
+                while (!hasRoomFor(file.getPageSize())) {
+                    if (sequential && ringFull(part) ? !part.recycleRingPage()
+                            : !evictForPrefetch(part)) {
+                        return;
+                    }
+                }
+                frame = frameFor(file);
+                Page page = read(file, pid, frame);
+                if (page == null) {
+                    return;
+                }
+                if (frame != null && !inFrame(page)) {
+                    arena.release(frame);
+                    frame = null;
+                }
+                part.latch.lock();
+                try {
+                    if (inFlight.get(pid) || part.pages.containsKey(pid)) {
+                        return;
+                    }
+                    part.cacheIfAbsent(pid, page, sequential, frame);
+                    frame = null;
+                    prefetched.add(pid);
+                    prefetchIssued.incrementAndGet();
+                } finally {
+                    part.latch.unlock();
+                }
+            } finally {
+                if (frame != null) {
+                    arena.release(frame);
+                }
+                inFlight.remove(pid);
+            }
+        });
+    }
+
+    /**
+     * Returns a free arena frame to read a page of file into, or null if the
+     * pool has no arena, the file's pages do not fit its frames, or every
+     * frame is in use.
+     */
+    private ByteBuffer frameFor(DbFile file) {
+        if (arena == null || !(file instanceof HeapFile) || file.getPageSize() != arena.getFrameSize()) {
+            return null;
+        }
+        return arena.acquire();
+    }
+
+    /** Read pid from file, into frame if it is not null and the file can. */
+    private static Page read(DbFile file, PageId pid, ByteBuffer frame) {
+        if (frame != null) {
+            try {
+                Page page = ((HeapFile) file).readPage(pid, frame);
+                if (page != null) {
+                    return page;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return file.readPage(pid);
+    }
+
+    /** Returns true if page was read into the frame passed to read. */
+    private static boolean inFrame(Page page) {
+        return page instanceof HeapPage && ((HeapPage) page).isLent();
+    }
+
+    private boolean cached(Partition part, PageId pid) {
+        part.latch.lock();
+        try {
+            return part.pages.containsKey(pid);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    private boolean ringFull(Partition part) {
+        part.latch.lock();
+        try {
+            return part.ringFull();
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /** Returns the partition eviction for a page of home should start at. */
+    private int evictionStart(Partition home) {
+        // a partition holding less than its share takes from the fullest one
+        int start = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i] == home && home.bytes * partitions.length >= getCapacityBytes()) {
+                return i;
+            }
+            if (partitions[i].bytes > partitions[start].bytes) {
+                start = i;
+            }
+        }
+        return start;
+    }
+
+    private boolean evictForPrefetch(Partition home) {
+        int start = evictionStart(home);
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[(start + i) % partitions.length].evictForPrefetch()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Wait until every prefetch requested so far has finished. */
+    static void awaitPrefetches() throws InterruptedException {
+        try {
+            prefetcher.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return the number of pages read into the pool by prefetch */
+    public long getPrefetchIssued() {
+        return prefetchIssued.get();
+    }
+
+    /** @return the number of prefetched pages later asked for by getPage */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** @return the number of prefetched pages that left the pool unused */
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+
+    /** Note that pid left the pool, counting it as wasted if it was never used. */
+    private void removed(PageId pid) {
+        inFlight.replace(pid, Boolean.TRUE);
+        if (prefetched.remove(pid)) {
+            prefetchWasted.incrementAndGet();
+        }
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -87,89 +1196,209 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, for a caller
+     * that says whether it is reading the file sequentially. Pages a
+     * sequential scan reads are cached in the scan ring (see
+     * {@link #setScanRingPages}) rather than the main pool.
+     *
+     * @param sequential true if the caller is a sequential scan
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+        throws TransactionAbortedException, DbException {
 
         // jps -l
         // jstack 11988
 
         // some code goes here
 
+        return fetch(tid, pid, perm, sequential, false);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions, boolean)}, and
+     * pins the page, so that it stays in the pool until tid unpins it with
+     * {@link #unpinPage}. A page may be pinned more than once, by one or
+     * more transactions; it stays until every pin is released.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+        throws TransactionAbortedException, DbException {
+        return fetch(tid, pid, perm, sequential, true);
+    }
+
+    /**
+     * Release one pin tid holds on pid.
+     *
+     * @throws IllegalStateException if tid holds no pin on pid
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Partition part = partitionOf(pid);
+        part.latch.lock();
         try {
-            int timeoutCount = 0;
-            for(;;) {
-                lock.lock();
-                if (transactionIdMap.containsKey(pid)
-                        && !transactionIdMap.get(pid).isEmpty()) {
-
-                    if(permissionsMap.get(pid).permLevel == Permissions.READ_WRITE.permLevel){ // old one is exclusive lock.
-                        if(transactionIdMap.get(pid).contains(tid)){
-                            System.out.println(tid.toString() + "acquire lock again " +  Permissions.READ_WRITE.toString());
-                            lock.unlock();
-                            break;
-                        }
-                    }else{ // old one is shared lock.
-                        if(perm.permLevel == Permissions.READ_ONLY.permLevel){ // now for read.
-                            System.out.println(tid.toString() + "acquire lock( " + pid.toString() + ")" +  Permissions.READ_ONLY.toString());
-                            transactionIdMap.get(pid).add(tid);
-
-                            if(!transactionIdSetMap.containsKey(tid)) transactionIdSetMap.put(tid, new HashSet<>());
-                            transactionIdSetMap.get(tid).add(pid);
-
-                            lock.unlock();
-                            break;
-                        }else{ // upgrade to write
-                            if(transactionIdMap.get(pid).size() == 1 && transactionIdMap.get(pid).contains(tid)){
-                                System.out.println(tid.toString() + "upgrade lock to " +  Permissions.READ_WRITE.toString());
-                                permissionsMap.put(pid, Permissions.READ_WRITE);
-                                lock.unlock();
-                                break;
-                            }
-                        }
-                    }
-                }else{
-                    System.out.println(tid.toString() + "acquire lock(" + pid.toString() + ") as " +  perm.toString());
-                    //System.out.println(tid.toString() + " acquire locks of page" + pid.toString());
-                    transactionIdMap.put(pid, new HashSet<>());
-                    transactionIdMap.get(pid).add(tid);
-                    permissionsMap.put(pid, perm);
+            Map<PageId, Pins> held = pinsByTransaction.get(tid);
+            Pins p = held == null ? null : held.get(pid);
+            if (p == null) {
+                throw new IllegalStateException(tid + " holds no pin on " + pid);
+            }
+            if (--p.count == 0) {
+                held.remove(pid);
+            }
+            unpin(part, pid, 1);
+        } finally {
+            part.latch.unlock();
+        }
+    }
 
-                    if(!transactionIdSetMap.containsKey(tid)) transactionIdSetMap.put(tid, new HashSet<>());
-                    transactionIdSetMap.get(tid).add(pid);
+    /** @return the number of pins on pid, by any transaction */
+    public int getPinCount(PageId pid) {
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            return part.pins.getOrDefault(pid, 0);
+        } finally {
+            part.latch.unlock();
+        }
+    }
 
-                    lock.unlock();
-                    break;
-                }
+    /**
+     * Returns a description of each page a transaction still had pinned
+     * when it completed, in the order found. If pin tracking is on, each
+     * includes the stack where the first such pin was taken. Transactions
+     * that were refused a lock are not included.
+     */
+    public List<String> getPinLeaks() {
+        synchronized (pinLeaks) {
+            return new ArrayList<>(pinLeaks);
+        }
+    }
 
-                lock.unlock();
-                Thread.sleep(10); // todo: use condition instead.
-                if(++ timeoutCount >= 5){
-                    throw new TransactionAbortedException();
-                    // if dead lock. throw a exception to abort.
-                    // user should commit/abort the transaction try again.
-                }
+    /**
+     * Turn recording where each pin is taken on or off. It is off unless
+     * the system property simpledb.trackPins is true.
+     */
+    public void setPinTracking(boolean on) {
+        trackPins = on;
+    }
+
+    /** Record a pin on pid for tid. Caller must hold the latch of part. */
+    private void pin(Partition part, TransactionId tid, PageId pid) {
+        part.pins.merge(pid, 1, Integer::sum);
+        Pins p = pinsByTransaction.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pid, k -> new Pins());
+        if (p.count++ == 0 && trackPins) {
+            p.site = new Throwable(tid + " pinned " + pid);
+        }
+    }
+
+    /** Drop count pins on pid. Caller must hold the latch of part. */
+    private void unpin(Partition part, PageId pid, int count) {
+        int left = part.pins.getOrDefault(pid, 0) - count;
+        if (left > 0) {
+            part.pins.put(pid, left);
+        } else {
+            part.pins.remove(pid);
+            List<ByteBuffer> frames = part.retired.remove(pid);
+            if (frames != null) {
+                frames.forEach(arena::release);
             }
-        } catch (InterruptedException e){
-            e.printStackTrace();
         }
+    }
+
+    /** Release the pins tid still holds, reporting each page as a leak. */
+    private void releasePins(TransactionId tid) {
+        boolean unwound = refused.remove(tid);
+        Map<PageId, Pins> held = pinsByTransaction.remove(tid);
+        if (held == null) {
+            return;
+        }
+        for (Map.Entry<PageId, Pins> e : held.entrySet()) {
+            Partition part = partitionOf(e.getKey());
+            part.latch.lock();
+            try {
+                unpin(part, e.getKey(), e.getValue().count);
+            } finally {
+                part.latch.unlock();
+            }
+            if (unwound) {
+                continue;
+            }
+            StringWriter leak = new StringWriter();
+            leak.write(tid + " completed with " + e.getKey() + " pinned " + e.getValue().count + " time(s)");
+            if (e.getValue().site != null) {
+                leak.write(System.lineSeparator());
+                e.getValue().site.printStackTrace(new PrintWriter(leak));
+            }
+            pinLeaks.add(leak.toString());
+            Debug.log("pin leak: %s", leak);
+        }
+    }
 
+    private Page fetch(TransactionId tid, PageId pid, Permissions perm, boolean sequential, boolean pin)
+        throws TransactionAbortedException, DbException {
+        try {
+            lockManager.acquire(tid, pid, perm);
+        } catch (TransactionAbortedException e) {
+            refused.add(tid);
+            throw e;
+        }
 
-        if (pageID2Page.containsKey(pid)) {
-            return pageID2Page.get(pid);
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            Page cached = part.pages.get(pid);
+            if (cached != null) {
+                hits.increment();
+                part.accessed(pid, sequential);
+                if (prefetched.remove(pid)) {
+                    prefetchHits.incrementAndGet();
+                }
+                if (pin) {
+                    pin(part, tid, pid);
+                }
+                return cached;
+            }
+        } finally {
+            part.latch.unlock();
         }
+
+        misses.increment();
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = file.readPage(pid);
         try {
-            if (pageID2Page.size() >= numPages) {
-                /*for (PageId key : pageID2Page.keySet()) {
-                    flushPage(key);
-                    break;
-                }*/
-                evictPage(); // fixme: evictPage instead of flush.
+            while (!hasRoomFor(file.getPageSize())) {
+                if (!(sequential && part.recycleRingPage())) {
+                    evictPage(part); // fixme: evictPage instead of flush.
+                }
             }
         } catch (IOException e) {   // fixme: do not catch DbException("All pages are marked dirty...") here , throw to testcase
             e.printStackTrace();
         }
-        pageID2Page.put(pid, page);
-        return page;
+        ByteBuffer frame = frameFor(file);
+        Page page = read(file, pid, frame);
+        if (frame != null && !inFrame(page)) {
+            arena.release(frame);
+            frame = null;
+        }
+        // a prefetch may have installed the same page while it was read
+        part.latch.lock();
+        try {
+            Page cached = part.cacheIfAbsent(pid, page, sequential, frame);
+            if (cached != null) {
+                part.accessed(pid, sequential);
+                if (prefetched.remove(pid)) {
+                    prefetchHits.incrementAndGet();
+                }
+                page = cached;
+            }
+            if (pin) {
+                pin(part, tid, pid);
+            }
+            return page;
+        } finally {
+            part.latch.unlock();
+        }
     }
 
     /**
@@ -184,18 +1413,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        lock.lock();
-
-        System.out.println(tid.toString() + " release lock ");
-
-        //System.out.println(tid.toString() + " release locks of page" + pid.toString());
-        transactionIdMap.get(pid).remove(tid);
-        transactionIdSetMap.get(tid).remove(pid);
-
-        if(transactionIdMap.get(pid).size() == 0) transactionIdMap.remove(pid);
-        if(transactionIdSetMap.get(tid).size() == 0) transactionIdSetMap.remove(tid);
-
-        lock.unlock();
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -213,15 +1431,18 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        lock.lock();
-        boolean result = transactionIdSetMap.get(tid).contains(p);
-        lock.unlock();
-        return result;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * Every page of the transaction is flushed (on commit) or discarded (on
+     * abort) before any of its locks is released. With the page cleaner on,
+     * a commit logs the pages instead of flushing them, and an abort puts
+     * back the last committed image of a page that is not on disk yet. Pins
+     * the transaction still holds are released first and reported as leaks.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -230,53 +1451,70 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        lock.lock();
-        if(commit) {
-            Set<PageId> pageIds = transactionIdSetMap.get(tid);
-            if(pageIds != null) {
-                for (PageId pageId : pageIds) {
-                    if (pageId == null) {
-                        continue;
-                    }
-                    flushPage(pageId);
-                    transactionIdMap.get(pageId).remove(tid);
-                    if(transactionIdMap.get(pageId).size() == 0) transactionIdMap.remove(pageId);
-                }
-            }
-            transactionIdSetMap.remove(tid);
-            // fixme bug: transactionIdSetMap.get(tid) cause deadlock......
-        }else{
-            Set<PageId> pageIds = transactionIdSetMap.get(tid);
-            if(pageIds != null) {
-                for (PageId pageId : pageIds) {
-                    if (pageId == null) {
-                        continue;
+        releasePins(tid);
+        if (!commit) {
+            loggedBy.remove(tid);
+        }
+        if (commit && pageCleaner) {
+            boolean unwritten = commitPages(tid);
+            lockManager.releaseAll(tid);
+            if (unwrittenPages.get() > numPages / 4) {
+                // the cleaner is falling behind, and pages others lock
+                // before it gets to them can be neither written nor evicted
+                clean();
+            } else if (unwritten) {
+                scheduleCleaning();
+            }
+            return;
+        }
+        boolean unwritten = false;
+        for (PageId pageId : lockManager.pagesLockedBy(tid)) {
+            Partition part = partitionOf(pageId);
+            part.latch.lock();
+            try {
+                if (commit) {
+                    flushPage(part, pageId);
+                } else if (!part.unwritten.contains(pageId)) {
+                    part.uncache(pageId);
+                    removed(pageId);
+                    discarded(pageId);
+                } else {
+                    // a cleaning pass skipped this page while tid had it locked
+                    unwritten = true;
+                    if (!part.isClean(pageId)) {
+                        // the disk does not have the last committed image yet
+                        part.cache(pageId, part.pages.get(pageId).getBeforeImage());
+                        discarded(pageId);
                     }
-//                    DbFile file = Database.getCatalog().getDatabaseFile(pageId.getTableId());
-//                    Page page = file.readPage(pageId);
-//                    pageID2Page.put(pageId, page);
-//                    page.markDirty(false, null);
-                    pageID2Page.remove(pageId);
-                    transactionIdMap.get(pageId).remove(tid);
-                    if(transactionIdMap.get(pageId).size() == 0) transactionIdMap.remove(pageId);
                 }
+            } finally {
+                part.latch.unlock();
             }
-            transactionIdSetMap.remove(tid);
         }
-        System.out.println(tid.toString() + "release lock ");
-        lock.unlock();
+        lockManager.releaseAll(tid);
+        if (unwritten) {
+            scheduleCleaning();
+        }
+    }
+
+    /** Tell the file of pid that changes to the cached page were thrown away. */
+    static void discarded(PageId pid) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).pageDiscarded(pid);
+        }
     }
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other 
-     * pages that are updated (Lock acquisition is not needed for lab2). 
+     * acquire a write lock on the page the tuple is added to and any other
+     * pages that are updated (Lock acquisition is not needed for lab2).
      * May block if the lock(s) cannot be acquired.
-     * 
+     *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit, and adds versions of any pages that have 
-     * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * their markDirty bit, and adds versions of any pages that have
+     * been dirtied to the cache (replacing any existing versions of those pages) so
+     * that future requests see up-to-date pages.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -292,7 +1530,7 @@ public class BufferPool {
         ArrayList<Page> affected = file.insertTuple(tid, t);
         for(int i = 0; i < affected.size(); ++ i) {
             affected.get(i).markDirty(true, tid);
-            pageID2Page.put(affected.get(i).getId(), affected.get(i));
+            cacheDirty(affected.get(i));
         }
 
     }
@@ -303,9 +1541,9 @@ public class BufferPool {
      * other pages that are updated. May block if the lock(s) cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit, and adds versions of any pages that have 
-     * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * their markDirty bit, and adds versions of any pages that have
+     * been dirtied to the cache (replacing any existing versions of those pages) so
+     * that future requests see up-to-date pages.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -318,7 +1556,17 @@ public class BufferPool {
         ArrayList<Page> affected = file.deleteTuple(tid, t);
         for(int i = 0; i < affected.size(); ++ i) {
             affected.get(i).markDirty(true, tid);
-            pageID2Page.put(affected.get(i).getId(), affected.get(i));
+            cacheDirty(affected.get(i));
+        }
+    }
+
+    private void cacheDirty(Page page) {
+        Partition part = partitionOf(page.getId());
+        part.latch.lock();
+        try {
+            part.cache(page.getId(), page);
+        } finally {
+            part.latch.unlock();
         }
     }
 
@@ -327,11 +1575,18 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId key : pageID2Page.keySet()){
-            flushPage(key);
+        for (Partition part : partitions) {
+            part.latch.lock();
+            try {
+                for(PageId key : new ArrayList<>(part.pages.keySet())){
+                    flushPage(part, key);
+                }
+            } finally {
+                part.latch.unlock();
+            }
         }
     }
 
@@ -339,79 +1594,151 @@ public class BufferPool {
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
         cache.
-        
+
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageID2Page.remove(pid);
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            part.uncache(pid);
+            removed(pid);
+        } finally {
+            part.latch.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. Caller must hold the latch of part.
+     * The page is written right after its update record is logged, also
+     * with the page cleaner on: LogFile.rollback undoes a live
+     * transaction's records from the page on disk.
+     * @param part the partition of pid
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(Partition part, PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
 
         // append an update record to the log, with
         // a before-image and after-image.
 
-        if(pageID2Page.containsKey(pid)) {
+        if(part.pages.containsKey(pid)) {
 
-            Page page = pageID2Page.get(pid);
+            Page page = part.pages.get(pid);
             TransactionId dirtier = page.isDirty();
             if (dirtier != null){
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);                               // write to logfile.
-                Database.getLogFile().force();
+                part.logUpdate(pid, page);                               // write to logfile.
             }
+            writeBack(part, pid, page);
+            // pageID2Page.remove(pid);
+        }
+    }
 
-            if(page.isDirty() != null) {    // only flush dirty page.
-                HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-                heapFile.writePage(page);
-                page.markDirty(false, null);
-            }
+    /**
+     * Write page, cached under pid, to disk if it is dirty or committed but
+     * unwritten. A dirty page must have its update record logged already.
+     */
+    private void writeBack(Partition part, PageId pid, Page page) throws IOException {
+        if(page.isDirty() != null) {    // only flush dirty page.
+            write(page);
+            page.markDirty(false, null);
 
-            // fixme: tricky above if(dirtier != null) already write the beforeImage into disk(logFile). here set new BeforeImage.
-            page.setBeforeImage();                                                                                  // oldData = getPageData().clone(); getPageData() read data from disk.
-            // pageID2Page.remove(pid);
+            // fixme: tricky: the update record logged the old beforeImage already. here set new BeforeImage.
+            // a clean page still matches its before image, so only a page just written needs a new one
+            page.setBeforeImage();                                                                              // oldData = getPageData().clone(); getPageData() read data from disk.
+            part.markWritten(pid);
+        } else if (part.markWritten(pid)) {
+            write(page);
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * The update records of all of them are appended first, so that a
+     * single force of the log, shared with concurrent committers, covers
+     * them. With the page cleaner on, only append their update records; the
+     * pages are left to the cleaner once the transaction completes.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        lock.lock();
-        Set<PageId> pageIdSet = transactionIdSetMap.get(tid);
-        if (pageIdSet != null) {
-            for (PageId p : pageIdSet) {
-                flushPage(p);
+        if (pageCleaner) {
+            logUpdates(tid);
+            return;
+        }
+        Set<PageId> locked = lockManager.pagesLockedBy(tid);
+        for (PageId p : locked) {
+            Partition part = partitionOf(p);
+            part.latch.lock();
+            try {
+                Page page = part.pages.get(p);
+                if (page != null && page.isDirty() != null) {
+                    part.logUpdate(p, page);
+                }
+            } finally {
+                part.latch.unlock();
+            }
+        }
+        Database.getLogFile().force();
+        for (PageId p : locked) {
+            Partition part = partitionOf(p);
+            part.latch.lock();
+            try {
+                Page page = part.pages.get(p);
+                if (page != null) {
+                    writeBack(part, p, page);
+                }
+            } finally {
+                part.latch.unlock();
             }
         }
-        lock.unlock();
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool to make room for a page of home.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * The victim comes from home if home holds at least its share of the
+     * pool, and otherwise from the fullest partition; if that partition has
+     * nothing to evict, the next one is tried, and so on. Within a
+     * partition, scan ring pages beyond the partition's share of the ring,
+     * left over from when the pool had room, go before anything else. Then
+     * the replacement policy picks among clean pages, except that clean
+     * pages decoded from a memory-mapped file are evicted first, since
+     * reading them back costs no disk I/O. The rest of the ring goes once
+     * the main pool has no clean page left. Prefetched pages nobody has used
+     * yet are evicted next, from any partition, since a scan is about to
+     * ask for them. Only if there are none is a committed page the page
+     * cleaner has not reached yet written and evicted. Pinned pages are
+     * never evicted.
      */
-    private synchronized  void evictPage() throws DbException, IOException {
+    private void evictPage(Partition home) throws DbException, IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pageId : pageID2Page.keySet()){
-            if(pageID2Page.get(pageId).isDirty() != null){
-                continue;
+        int start = evictionStart(home);
+        long cleaned;
+        // the cleaner may turn an unwritten page clean between the passes
+        do {
+            cleaned = cleanerWrites.get();
+            for (boolean unusedPrefetches : new boolean[] { false, true }) {
+                for (int i = 0; i < partitions.length; i++) {
+                    if (partitions[(start + i) % partitions.length].evictOne(unusedPrefetches)) {
+                        return ;
+                    }
+                }
             }
-            // flushPage(pageId);
-            pageID2Page.remove(pageId);
-            return ;
-        }
-        throw new DbException("All pages are marked dirty...");
+            for (int i = 0; i < partitions.length; i++) {
+                if (partitions[(start + i) % partitions.length].evictUnwritten()) {
+                    evictionWrites.incrementAndGet();
+                    return;
+                }
+            }
+        } while (cleanerWrites.get() != cleaned);
+        evictionFailures.incrementAndGet();
+        throw new DbException("All pages are marked dirty or pinned...");
     }
 
 }
@@ -141,6 +141,16 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <code>name (field type [pk], ...) [option ...]</code>.
+     * Table options are <code>mapped</code>, which reads the table through a
+     * memory mapping (see {@link HeapFile#HeapFile(File, TupleDesc, boolean)}),
+     * <code>slotted</code>, which stores it in SlottedPages (see
+     * {@link HeapFile.PageFormat}), <code>compressed</code>, which keeps its
+     * pages compressed on disk (see {@link PageCompressor}),
+     * <code>pax</code>, which stores it column by column in a {@link PaxFile},
+     * and <code>pagesize=</code><i>bytes</i>, which gives the table its own
+     * page size (see {@link DbFile#getPageSize()}). The data file must have
+     * been written with the same page size.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -150,10 +160,46 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [option ...]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean mapped = false;
+                HeapFile.PageFormat format = HeapFile.PageFormat.FIXED;
+                boolean pax = false;
+                int pageSize = 0;
+                for (String opt : options.split("\\s+")) {
+                    if (opt.length() == 0)
+                        continue;
+                    if (opt.toLowerCase().equals("mapped"))
+                        mapped = true;
+                    else if (opt.toLowerCase().equals("slotted") || opt.toLowerCase().equals("compressed")) {
+                        if (format != HeapFile.PageFormat.FIXED) {
+                            System.out.println("Table options slotted and compressed cannot be combined");
+                            System.exit(0);
+                        }
+                        format = opt.toLowerCase().equals("slotted") ? HeapFile.PageFormat.SLOTTED
+                                : HeapFile.PageFormat.COMPRESSED;
+                    }
+                    else if (opt.toLowerCase().equals("pax"))
+                        pax = true;
+                    else if (opt.toLowerCase().startsWith("pagesize=")) {
+                        try {
+                            pageSize = Integer.parseInt(opt.substring("pagesize=".length()));
+                        } catch (NumberFormatException e) {
+                            pageSize = -1;
+                        }
+                        if (pageSize <= 0) {
+                            System.out.println("Bad page size " + opt);
+                            System.exit(0);
+                        }
+                    }
+                    else {
+                        System.out.println("Unknown table option " + opt);
+                        System.exit(0);
+                    }
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -181,7 +227,13 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                if (pax && (mapped || format != HeapFile.PageFormat.FIXED)) {
+                    System.out.println("Table option pax cannot be combined with other options than pagesize");
+                    System.exit(0);
+                }
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = pax ? new PaxFile(tabFile, t, pageSize)
+                        : new HeapFile(tabFile, t, mapped, format, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * ClockPolicy approximates LRU with a reference bit per cached page. Pages
+ * sit in a circle of frames; a clock hand sweeps the circle looking for a
+ * victim, clearing the reference bit of each page it passes and stopping at
+ * the first evictable page whose bit is already clear. A page that is used
+ * again before the hand comes back survives the next sweep.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    /** The page in each frame, or null for a free frame. */
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final BitSet referenced = new BitSet();
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+    private int hand;
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer i = frameOf.get(pid);
+        if (i == null) {
+            i = free.isEmpty() ? frames.size() : free.pop();
+            if (i == frames.size()) {
+                frames.add(pid);
+            } else {
+                frames.set(i, pid);
+            }
+            frameOf.put(pid, i);
+        }
+        referenced.set(i);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer i = frameOf.get(pid);
+        if (i != null) {
+            referenced.set(i);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer i = frameOf.remove(pid);
+        if (i != null) {
+            frames.set(i, null);
+            referenced.clear(i);
+            free.push(i);
+        }
+    }
+
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            int i = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(i);
+            if (pid == null || !evictable.test(pid)) {
+                continue;
+            }
+            if (referenced.get(i)) {
+                referenced.clear(i);
+                continue;
+            }
+            return pid;
+        }
+        return null;
+    }
+}
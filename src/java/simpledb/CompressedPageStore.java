@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CompressedPageStore keeps the pages of a file as variable-length blobs, as
+ * produced by {@link PageCompressor}. Page i no longer sits at
+ * i * pageSize, so the store keeps a page map recording where each blob
+ * lives.
+ * <p>
+ * Each blob is written into an extent of the data file: a run of bytes
+ * somewhat larger than the blob, so that a page that grows a little can be
+ * rewritten in place. A page that outgrows its extent is written to a new
+ * extent at the end of the file and its old extent is left unused.
+ * <p>
+ * The page map is persisted in a side file next to the data file (the data
+ * file name with ".pmap" appended) holding, for each page, the offset of its
+ * extent (a long), the length of its blob and the size of its extent (two
+ * ints). A blob is always written before the map entry that points at it.
+ *
+ * @Threadsafe
+ */
+public class CompressedPageStore {
+
+    /** Bytes per page map entry. */
+    static final int ENTRY_SIZE = 16;
+
+    /** Extents are a multiple of this many bytes. */
+    static final int EXTENT_ALIGN = 64;
+
+    private final File file;
+    private final PageChannel data;
+    private final File mapFile;
+    private final PageChannel map;
+
+    /** The page map, loaded lazily. */
+    private long[] offsets;
+    private int[] lengths;
+    private int[] extents;
+    private int numPages;
+
+    /** The end of the last extent in the data file. */
+    private long end;
+
+    /**
+     * Create a store for the pages kept in f.
+     *
+     * @param f the data file; its page map lives next to it
+     */
+    public CompressedPageStore(File f) {
+        this.file = f;
+        this.data = new PageChannel(f);
+        this.mapFile = new File(f.getPath() + ".pmap");
+        this.map = new PageChannel(mapFile);
+    }
+
+    /**
+     * Returns the side file the page map is persisted in.
+     */
+    public File getMapFile() {
+        return mapFile;
+    }
+
+    private void load() throws IOException {
+        if (offsets != null) {
+            return;
+        }
+        offsets = new long[16];
+        lengths = new int[16];
+        extents = new int[16];
+        numPages = 0;
+        end = 0;
+        // a map without data belongs to an older file at the same path
+        if (!mapFile.exists() || file.length() == 0) {
+            return;
+        }
+        byte[] b = new byte[(int) (mapFile.length() / ENTRY_SIZE * ENTRY_SIZE)];
+        map.read(0, b);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        for (int i = 0; i < b.length / ENTRY_SIZE; i++) {
+            long offset = buf.getLong();
+            int length = buf.getInt();
+            int extent = buf.getInt();
+            if (offset + extent > file.length()) {
+                // the blob was never written; this and later pages do not exist
+                break;
+            }
+            set(i, offset, length, extent);
+        }
+    }
+
+    private void set(int pgNo, long offset, int length, int extent) {
+        if (pgNo >= offsets.length) {
+            int n = Math.max(offsets.length * 2, pgNo + 1);
+            offsets = Arrays.copyOf(offsets, n);
+            lengths = Arrays.copyOf(lengths, n);
+            extents = Arrays.copyOf(extents, n);
+        }
+        offsets[pgNo] = offset;
+        lengths[pgNo] = length;
+        extents[pgNo] = extent;
+        numPages = Math.max(numPages, pgNo + 1);
+        end = Math.max(end, offset + extent);
+    }
+
+    /**
+     * Returns the number of pages in the store.
+     */
+    public synchronized int numPages() throws IOException {
+        load();
+        return numPages;
+    }
+
+    /**
+     * Returns the number of bytes of blobs in the store, i.e. the bytes a
+     * scan of every page reads.
+     */
+    public synchronized long storedBytes() throws IOException {
+        load();
+        long total = 0;
+        for (int i = 0; i < numPages; i++) {
+            total += lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * Read the blob of the specified page. A page that was skipped over by
+     * {@link #write} has an empty blob.
+     *
+     * @return the blob, or null if the page does not exist
+     */
+    public byte[] read(int pgNo) throws IOException {
+        long offset;
+        byte[] b;
+        synchronized (this) {
+            load();
+            if (pgNo < 0 || pgNo >= numPages) {
+                return null;
+            }
+            offset = offsets[pgNo];
+            b = new byte[lengths[pgNo]];
+        }
+        if (data.read(offset, b) < b.length) {
+            throw new EOFException("compressed page " + pgNo + " is truncated");
+        }
+        return b;
+    }
+
+    /**
+     * Write the blob of the specified page, in place if it fits in the
+     * page's extent and at the end of the file otherwise. Pages may be
+     * written in any order; pages skipped over are created empty.
+     */
+    public synchronized void write(int pgNo, byte[] blob) throws IOException {
+        load();
+        long offset;
+        int extent;
+        if (pgNo < numPages && blob.length <= extents[pgNo]) {
+            offset = offsets[pgNo];
+            extent = extents[pgNo];
+            data.write(offset, blob);
+        } else {
+            // leave room to grow by an eighth
+            int want = blob.length + blob.length / 8;
+            extent = (want + EXTENT_ALIGN - 1) / EXTENT_ALIGN * EXTENT_ALIGN;
+            offset = end;
+            // pad to the end of the extent so the file covers all of it
+            data.write(offset, Arrays.copyOf(blob, extent));
+        }
+        for (int i = numPages; i < pgNo; i++) {
+            writeEntry(i, end, 0, 0);
+        }
+        writeEntry(pgNo, offset, blob.length, extent);
+    }
+
+    private void writeEntry(int pgNo, long offset, int length, int extent) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        buf.putLong(offset).putInt(length).putInt(extent);
+        map.write((long) pgNo * ENTRY_SIZE, buf.array());
+        set(pgNo, offset, length, extent);
+    }
+
+    /**
+     * Close the data file and the page map. They are reopened on the next
+     * read or write.
+     */
+    public void close() throws IOException {
+        data.close();
+        map.close();
+    }
+}
@@ -88,4 +88,14 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the size in bytes of the pages of this file. The BufferPool
+     * charges each cached page of the file this many bytes.
+     * @return the page size of this DbFile; by default the global
+     *   {@link BufferPool#getPageSize()}.
+     */
+    public default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
 }
@@ -10,6 +10,13 @@ package simpledb;
  * or simply -Dsimpledb.Debug to enable it at level 0.
  * The log(level, message, ...) method will print to standard output if the
  * level number is less than or equal to the currently set DEBUG_LEVEL.
+ * <p>
+ * The trace(level, event, ...) method records events on hot paths, such as
+ * lock requests. Its arguments are only formatted when the event is written
+ * out, and while the level is not being logged a call costs no more than
+ * the comparison against DEBUG_LEVEL. With -Dsimpledb.Debug.ring=n traced
+ * events go to a {@link TraceRing} of the last n events instead of standard
+ * output, to be examined with traceRing() after the fact.
  */
 
 public class Debug {
@@ -29,6 +36,15 @@ public class Debug {
 
   private static final int DEFAULT_LEVEL = 0;
 
+  /** Level of lock events: grants, upgrades, releases and aborts. */
+  public static final int LOCK_LEVEL = 2;
+
+  private static final TraceRing RING;
+  static {
+      String ring = System.getProperty("simpledb.Debug.ring");
+      RING = ring == null ? null : new TraceRing(Integer.parseInt(ring));
+  }
+
   /** Log message if the log level >= level. Uses printf. */
   public static void log(int level, String message, Object... args) {
     if (isEnabled(level)) {
@@ -51,4 +67,23 @@ public class Debug {
   public static void log(String message, Object... args) {
     log(DEFAULT_LEVEL, message, args);
   }
+
+  /**
+   * Record event, with up to three arguments, if the log level >= level.
+   * Unused arguments are null.
+   */
+  public static void trace(int level, String event, Object a, Object b, Object c) {
+    if (isEnabled(level)) {
+      if (RING != null) {
+        RING.add(event, a, b, c);
+      } else {
+        System.out.println(new TraceRing.Event(-1, event, a, b, c));
+      }
+    }
+  }
+
+  /** @return the ring traced events are recorded in, or null if they are printed. */
+  public static TraceRing traceRing() {
+    return RING;
+  }
 }
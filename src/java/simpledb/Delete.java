@@ -80,8 +80,8 @@ public class Delete extends Operator {
             try {
                 Database.getBufferPool().deleteTuple(transactionId, child.next());
                 ++ count;
-            }catch (Exception e){
-                e.printStackTrace();
+            }catch (IOException e){
+                throw new DbException("io error: " + e.getMessage());
             }
         }
         // construct a 3-column table schema
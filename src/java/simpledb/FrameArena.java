@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FrameArena is a fixed set of page frames carved out of direct (off-heap)
+ * ByteBuffers, allocated once when the arena is created. A BufferPool that
+ * has an arena reads page images into its frames instead of into a new
+ * byte array per page, so a large pool keeps its page images outside the
+ * Java heap, where the garbage collector never copies or scans them.
+ * <p>
+ * A frame is handed out by {@link #acquire} and must be given back with
+ * {@link #release} once the page it holds has left the pool; until then no
+ * one else gets it.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** Most bytes allocated in one direct buffer. */
+    static final int CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int numFrames;
+    private final ArrayDeque<ByteBuffer> free;
+
+    /**
+     * Allocate an arena of numFrames frames of frameSize bytes each.
+     *
+     * @param numFrames the number of frames, at least 1
+     * @param frameSize the bytes in a frame, at least 1
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        if (numFrames < 1 || frameSize < 1) {
+            throw new IllegalArgumentException("an arena needs at least one non-empty frame");
+        }
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        this.free = new ArrayDeque<>(numFrames);
+        int perChunk = Math.max(1, CHUNK_BYTES / frameSize);
+        for (int first = 0; first < numFrames; first += perChunk) {
+            int frames = Math.min(perChunk, numFrames - first);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(frames * frameSize);
+            for (int i = 0; i < frames; i++) {
+                chunk.limit((i + 1) * frameSize).position(i * frameSize);
+                free.add(chunk.slice());
+            }
+        }
+    }
+
+    /** @return the bytes in each frame */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames in the arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames not handed out */
+    public synchronized int getFreeFrames() {
+        return free.size();
+    }
+
+    /**
+     * Hand out a free frame, cleared for writing a page image into.
+     *
+     * @return the frame, or null if every frame is in use
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer frame = free.poll();
+        if (frame != null) {
+            frame.clear();
+        }
+        return frame;
+    }
+
+    /** Give back a frame handed out by acquire. */
+    public synchronized void release(ByteBuffer frame) {
+        free.push(frame);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile are full, so that inserts
+ * can go straight to a page with an empty slot instead of fetching every
+ * page of the table.
+ * <p>
+ * The map is persisted in a side file next to the heap file (the heap file
+ * name with ".fsm" appended) holding one byte per page: 1 if the page is
+ * full, 0 otherwise. Pages past the end of the side file are assumed to have
+ * room.
+ * <p>
+ * The map is only a hint. A page marked as having room may turn out to be
+ * full, in which case the caller marks it full and moves on. A page is only
+ * marked full after it was seen full, and it is marked as having room again
+ * whenever a tuple is deleted from it or a transaction that touched it
+ * aborts, so a page with room is never hidden for good.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    static final byte HAS_ROOM = 0;
+    static final byte FULL = 1;
+
+    private final File file;
+    private final PageChannel channel;
+
+    /** Bit i is set if page i is known to be full; loaded lazily. */
+    private BitSet full;
+
+    /**
+     * Create the free space map for the heap file stored in f.
+     *
+     * @param f the heap file this map describes
+     */
+    public FreeSpaceMap(File f) {
+        this.file = new File(f.getPath() + ".fsm");
+        this.channel = new PageChannel(file);
+    }
+
+    /**
+     * Returns the side file this map is persisted in.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    private BitSet full(int numPages) throws IOException {
+        if (full == null) {
+            full = new BitSet();
+            if (file.exists()) {
+                long len = file.length();
+                // a map covering more pages than the heap file has belongs
+                // to an older file at the same path; ignore it
+                if (len <= numPages) {
+                    byte[] b = new byte[(int) len];
+                    channel.read(0, b);
+                    for (int i = 0; i < b.length; i++) {
+                        if (b[i] == FULL)
+                            full.set(i);
+                    }
+                }
+            }
+        }
+        return full;
+    }
+
+    /**
+     * Returns the first page at or after from that is not known to be full,
+     * or numPages if there is none.
+     *
+     * @param from the first page number to consider
+     * @param numPages the number of pages in the heap file
+     */
+    public synchronized int nextPageWithRoom(int from, int numPages) throws IOException {
+        int pgNo = full(numPages).nextClearBit(from);
+        return Math.min(pgNo, numPages);
+    }
+
+    /**
+     * Record that the specified page is full.
+     */
+    public synchronized void markFull(int pgNo, int numPages) throws IOException {
+        BitSet b = full(numPages);
+        if (!b.get(pgNo)) {
+            b.set(pgNo);
+            channel.write(pgNo, new byte[] { FULL });
+        }
+    }
+
+    /**
+     * Record that the specified page may have an empty slot.
+     */
+    public synchronized void markHasRoom(int pgNo, int numPages) throws IOException {
+        BitSet b = full(numPages);
+        if (b.get(pgNo)) {
+            b.clear(pgNo);
+            channel.write(pgNo, new byte[] { HAS_ROOM });
+        }
+    }
+
+    /**
+     * Close the side file. It is reopened on the next update.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * The tuples of child1 are loaded into a hash table in chunks, as many at a
+ * time as the {@link MemoryBudget} of the database grants memory for, up to
+ * MAP_SIZE, and child2 is scanned once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
@@ -52,11 +56,24 @@ public class HashEquiJoin extends Operator {
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
+    /** Memory reserved for the tuples in map. */
+    transient private MemoryBudget.Reservation memory;
 
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
+        if (memory == null) {
+            memory = new MemoryBudget.Reservation(Database.getMemoryBudget(), "HashEquiJoin");
+        }
+        memory.release();
+        long tupleBytes = MemoryBudget.tupleBytes(child1.getTupleDesc());
         while (child1.hasNext()) {
+            if (!memory.tryGrow(tupleBytes)) {
+                if (cnt > 0) {
+                    return true;
+                }
+                memory.grow(tupleBytes);
+            }
             t1 = child1.next();
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
@@ -87,6 +104,9 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        if (this.memory != null) {
+            this.memory.release();
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -8,19 +9,43 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor. A HeapFile can instead lay its pages out as SlottedPages,
+ * which store strings at their actual length, or keep its HeapPages
+ * compressed on disk; see {@link PageFormat}. Each HeapFile may have its
+ * own page size; see {@link #getPageSize()}.
  * 
  * @see simpledb.HeapPage#HeapPage
+ * @see simpledb.SlottedPage
  * @author Sam Madden
  */
 
 public class HeapFile implements DbFile {
 
+    /**
+     * The layout of the pages of a HeapFile.
+     */
+    public enum PageFormat {
+        /** Fixed-size slots behind a bitmap header; see {@link HeapPage}. */
+        FIXED,
+        /** Variable-length records behind a slot directory; see {@link SlottedPage}. */
+        SLOTTED,
+        /**
+         * HeapPages in memory, compressed column by column on disk; see
+         * {@link PageCompressor} and {@link CompressedPageStore}. Pages are
+         * decompressed when the BufferPool reads them and compressed again
+         * when it writes them back.
+         */
+        COMPRESSED
+    }
+
     public class FileIterator implements DbFileIterator{
 
         private int curPageNo;
 
-        private HeapPage curPage;
+        private TuplePage curPage;
+
+        /** The pool curPage is pinned in, or null if no page is pinned. */
+        private BufferPool pinnedIn;
 
         private TransactionId transactionId;
 
@@ -28,17 +53,52 @@ public class HeapFile implements DbFile {
 
         private Iterator<Tuple> tupleIterator;
 
+        private final ReadAhead readAhead;
+
+        /** Fields to project onto, or null for whole tuples. */
+        private final int[] fields;
+
+        private final TupleDesc projected;
+
         FileIterator(TransactionId transactionId) {
+            this(transactionId, null);
+        }
+
+        FileIterator(TransactionId transactionId, int[] fields) {
             this.transactionId = transactionId;
             this.tableId = getId();  // generator at runtime.
+            this.readAhead = new ReadAhead(tableId);
+            this.fields = fields;
+            this.projected = fields == null ? null : getTupleDesc(fields);
+        }
+
+        private Iterator<Tuple> tuples(TuplePage page) {
+            return fields == null ? page.iterator() : page.iterator(fields, projected);
+        }
+
+        /** Unpin the current page and pin the page pageNo in its place. */
+        private void moveTo(int pageNo) throws TransactionAbortedException, DbException {
+            unpinCurrent();
+            BufferPool pool = Database.getBufferPool();
+            HeapPageId heapPageId = new HeapPageId(tableId, pageNo);
+            curPage = (TuplePage) pool.pinPage(transactionId, heapPageId, Permissions.READ_ONLY, true);
+            pinnedIn = pool;
+            tupleIterator = tuples(curPage);
+        }
+
+        private void unpinCurrent() {
+            if (pinnedIn != null) {
+                pinnedIn.unpinPage(transactionId, curPage.getId());
+                pinnedIn = null;
+            }
         }
 
         @Override
         public void open()throws TransactionAbortedException, DbException {
             this.curPageNo = 0;
-            HeapPageId heapPageId = new HeapPageId(tableId, curPageNo);
-            curPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
-            tupleIterator = curPage.iterator();
+            readAhead.reset();
+            readAhead.pageAccessed(curPageNo, numPages());
+            moveTo(curPageNo);
 
         }
 
@@ -52,9 +112,8 @@ public class HeapFile implements DbFile {
             }
             while (curPageNo+1 < numPages()){
                 curPageNo += 1;
-                HeapPageId heapPageId = new HeapPageId(tableId, curPageNo);
-                curPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
-                tupleIterator = curPage.iterator();
+                readAhead.pageAccessed(curPageNo, numPages());
+                moveTo(curPageNo);
                 if(tupleIterator.hasNext()){
                     return true;
                 }
@@ -81,6 +140,7 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            unpinCurrent();
             curPageNo = 0;
             tupleIterator = null;
             curPage = null;
@@ -92,7 +152,25 @@ public class HeapFile implements DbFile {
 
     public TupleDesc tupleDesc;
 
+    private final PageChannel channel;
+
+    private final boolean mapped;
+
+    private final FreeSpaceMap freeSpace;
+
+    private final PageFormat format;
+
+    /** Bytes per page, or 0 to follow BufferPool.getPageSize(). */
+    private final int pageSize;
+
+    /** Where pages are kept if the format is COMPRESSED, else null. */
+    private final CompressedPageStore compressed;
 
+    /**
+     * False if a subclass overrides readPage(PageId), which then must see
+     * every page read; such a file never reads into a buffer pool frame.
+     */
+    private final boolean readsIntoFrames;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -102,9 +180,79 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * pages through a memory mapping of the file.
+     * <p>
+     * In mapped mode readPage decodes each HeapPage straight out of a
+     * read-only mapping instead of copying the page into a byte array, and
+     * the BufferPool treats the resulting pages as cheap to evict. Writes
+     * still go through the file channel. Mapped mode is meant for large,
+     * read-mostly tables.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
+        this(f, td, mapped, PageFormat.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages have
+     * the specified layout. Mapped mode only applies to FIXED pages; slotted
+     * pages are updated in place, so they are always read into a copy, and
+     * compressed pages must be decompressed.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped true to read pages through a memory mapping
+     * @param format the layout of the pages in f
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped, PageFormat format) {
+        this(f, td, mapped, format, 0);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages are
+     * pageSize bytes long. f must have been written with that page size,
+     * e.g. by HeapFileEncoder.convert with npagebytes set to pageSize.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped true to read pages through a memory mapping
+     * @param format the layout of the pages in f
+     * @param pageSize the bytes per page of f, or 0 for the global
+     *            {@link BufferPool#getPageSize()}
+     * @throws IllegalArgumentException if pageSize is negative, or is too
+     *            large for the page format
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped, PageFormat format, int pageSize) {
         // some code goes here
+        if (pageSize < 0 || (format == PageFormat.SLOTTED && pageSize > 1 << 16)) {
+            throw new IllegalArgumentException("bad page size " + pageSize);
+        }
+        this.pageSize = pageSize;
+        this.format = format;
         this.file = f;
         this.tupleDesc = td;
+        this.channel = new PageChannel(f);
+        this.mapped = mapped;
+        this.freeSpace = new FreeSpaceMap(f);
+        this.compressed = format == PageFormat.COMPRESSED ? new CompressedPageStore(f) : null;
+        boolean own;
+        try {
+            own = getClass().getMethod("readPage", PageId.class).getDeclaringClass() == HeapFile.class;
+        } catch (NoSuchMethodException e) {
+            own = false;
+        }
+        this.readsIntoFrames = own;
     }
 
     /**
@@ -117,6 +265,32 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the layout of the pages of this HeapFile.
+     */
+    public PageFormat getPageFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the size in bytes of the pages of this file: the page size it
+     * was constructed with, or the current {@link BufferPool#getPageSize()}
+     * if none was given. Wide rows and scan-heavy tables do better with
+     * large pages, which hold more tuples per read; small pages suit tables
+     * updated a few tuples at a time.
+     */
+    @Override
+    public int getPageSize() {
+        return pageSize > 0 ? pageSize : BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns true if this HeapFile reads its pages through a memory mapping.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -142,30 +316,53 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Returns the TupleDesc of this file projected onto the specified fields,
+     * as returned by {@link #iterator(TransactionId, int[])}.
+     *
+     * @param fields the indexes of the fields to keep, in order
+     */
+    public TupleDesc getTupleDesc(int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = tupleDesc.getFieldType(fields[i]);
+            names[i] = tupleDesc.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         Page page = null;
         try {
-            if(file.length() <= BufferPool.getPageSize() * pid.getPageNumber()){
+            int pageSize = getPageSize();
+            if(compressed != null ? pid.getPageNumber() >= numPages()
+                    : file.length() <= (long) pageSize * pid.getPageNumber()){
                 //System.out.println("new Page in read Page");
-                byte[] b = new byte[BufferPool.getPageSize()];
-                for(int i = 0; i < BufferPool.getPageSize(); ++ i){
-                    b[i] = 0;
-                }
-                HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPages()), b);
+                byte[] b = new byte[pageSize];
+                Page newPage = newPage(new HeapPageId(getId(), numPages()), b);
                 writePage(newPage);
                 return newPage;
             }
 
 
-            FileInputStream fis = new FileInputStream(file);
-            byte[] b = new byte[BufferPool.getPageSize()];
-            fis.skip(BufferPool.getPageSize() * pid.getPageNumber());
-            // bug: fis.read offset indicate that offset of `b`.
-            fis.read(b, 0, BufferPool.getPageSize());
             HeapPageId heapPageId = new HeapPageId(pid.getTableId(), pid.getPageNumber());
-            page = new HeapPage(heapPageId, b);
+            long offset = (long) pageSize * pid.getPageNumber();
+            if (compressed != null) {
+                byte[] blob = compressed.read(pid.getPageNumber());
+                byte[] b = blob.length == 0 ? HeapPage.createEmptyPageData(pageSize)
+                        : PageCompressor.decompress(blob, tupleDesc, pageSize);
+                page = newPage(heapPageId, b);
+            } else if (mapped && format == PageFormat.FIXED
+                    && offset + pageSize <= file.length()) {
+                page = new HeapPage(heapPageId, channel.map(offset, pageSize), true);
+            } else {
+                byte[] b = new byte[pageSize];
+                channel.read(offset, b);
+                page = newPage(heapPageId, b);
+            }
         }catch (IOException e){
             e.printStackTrace();
         }
@@ -173,13 +370,84 @@ public class HeapFile implements DbFile {
         return page;
     }
 
+    /**
+     * Read the specified page into frame, a buffer with room for exactly one
+     * page of this file, and return a page that decodes its contents from
+     * there. The page only borrows frame: a caller that reuses frame must
+     * make sure no one uses the page any more.
+     *
+     * @return the page, or null if this file does not read pages into a
+     *   buffer: it is compressed, slotted or memory-mapped, it is of a
+     *   subclass that overrides readPage(PageId), or the page is past the
+     *   end of the file
+     */
+    public TuplePage readPage(PageId pid, ByteBuffer frame) throws IOException {
+        int pageSize = getPageSize();
+        long offset = (long) pageSize * pid.getPageNumber();
+        if (!readsIntoFrames || compressed != null || mapped || format != PageFormat.FIXED
+                || frame.remaining() != pageSize || offset + pageSize > file.length()) {
+            return null;
+        }
+        ByteBuffer dst = frame.duplicate();
+        if (channel.read(offset, dst) < pageSize) {
+            return null;
+        }
+        return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), frame, false, true);
+    }
+
+    /**
+     * Creates the in-memory page for a page image of this file.
+     */
+    protected TuplePage newPage(HeapPageId pid, byte[] data) throws IOException {
+        if (format == PageFormat.SLOTTED) {
+            return new SlottedPage(pid, data);
+        }
+        return new HeapPage(pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile r = new RandomAccessFile(file, "rw");
-        r.seek(BufferPool.getPageSize() * page.getId().getPageNumber());
-        r.write(page.getPageData());
+        if (compressed != null) {
+            compressed.write(page.getId().getPageNumber(),
+                    PageCompressor.compress(page.getPageData(), tupleDesc));
+            return;
+        }
+        channel.write((long) getPageSize() * page.getId().getPageNumber(), page.getPageData());
+    }
+
+    /**
+     * Called when the in-memory copy of a page is thrown away without being
+     * written, e.g. when the transaction that modified it aborts. The page on
+     * disk may have more room than the free space map says, so it is marked
+     * as having room again.
+     */
+    public void pageDiscarded(PageId pid) throws IOException {
+        freeSpace.markHasRoom(pid.getPageNumber(), numPages());
+    }
+
+    /**
+     * Returns the number of bytes a scan of every page of this file reads
+     * from disk.
+     */
+    public long storedBytes() throws IOException {
+        if (compressed != null) {
+            return compressed.storedBytes();
+        }
+        return (long) numPages() * getPageSize();
+    }
+
+    /**
+     * Closes the channel backing this file and its free space map. The files
+     * are reopened on the next read or write.
+     */
+    public void close() throws IOException {
+        channel.close();
+        freeSpace.close();
+        if (compressed != null) {
+            compressed.close();
+        }
     }
 
     /**
@@ -187,7 +455,14 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)(file.length() / BufferPool.getPageSize());
+        if (compressed != null) {
+            try {
+                return compressed.numPages();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return (int)(file.length() / getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -196,47 +471,71 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> pages = new ArrayList<>();
-        for(int i = 0; i < numPages(); ++ i){
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i),Permissions.READ_WRITE);
+        BufferPool pool = Database.getBufferPool();
+        int numPages = numPages();
+        for(int i = freeSpace.nextPageWithRoom(0, numPages); i < numPages;
+                i = freeSpace.nextPageWithRoom(i + 1, numPages)){
+            TuplePage page = pinForUpdate(pool, tid, new HeapPageId(getId(), i));
+            try {
+                if(page.getNumEmptySlots() == 0){
+                    // stale hint
+                    freeSpace.markFull(i, numPages);
+                    continue;
+                }
+                if(!page.hasRoomFor(t)){
+                    // a smaller tuple may still fit on a slotted page
+                    continue;
+                }
+                page.insertTuple(t);
+                page.markDirty(true, tid);
+            } finally {
+                pool.unpinPage(tid, page.getId());
+            }
             if(page.getNumEmptySlots() == 0){
-                // TODO: should i add page to pages?
-                // pages: An ArrayList contain the pages that were modified
-                continue;
+                freeSpace.markFull(i, numPages);
             }
-            page.insertTuple(t);
             pages.add(page);
             return pages;
         }
 
-
-        // fixme: File Lock
-
-        // function of create page move to readPage.
-        // not write new tuples to disk (transaction)
-//        byte[] b = new byte[BufferPool.getPageSize()];
-//        for(int i = 0; i < BufferPool.getPageSize(); ++ i){
-//            b[i] = 0;
-//        }
-//        HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPages()), b);
-//        newPage.insertTuple(t);
-//        pages.add(newPage);
-//        writePage(newPage);
-
-        HeapPage newPage  = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), numPages()),Permissions.READ_WRITE);
-        newPage.insertTuple(t);
+        // no page has room: readPage appends a new, empty page
+        TuplePage newPage = pinForUpdate(pool, tid, new HeapPageId(getId(), numPages));
+        try {
+            newPage.insertTuple(t);
+            newPage.markDirty(true, tid);
+        } finally {
+            pool.unpinPage(tid, newPage.getId());
+        }
         pages.add(newPage);
         return pages;
 
     }
 
+    /**
+     * Pin pid for writing. A page is pinned from the moment it is fetched
+     * until it is dirty: a clean, unpinned page may be evicted, and in
+     * arena mode its frame lent to another page, before it is modified.
+     */
+    private static TuplePage pinForUpdate(BufferPool pool, TransactionId tid, PageId pid)
+            throws DbException, TransactionAbortedException {
+        return (TuplePage) pool.pinPage(tid, pid, Permissions.READ_WRITE, false);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         // some code goes
         // not necessary for lab1
         ArrayList<Page> pages = new ArrayList<>();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        BufferPool pool = Database.getBufferPool();
+        TuplePage page = pinForUpdate(pool, tid, t.getRecordId().getPageId());
+        try {
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            pool.unpinPage(tid, page.getId());
+        }
+        freeSpace.markHasRoom(page.getId().getPageNumber(), numPages());
         pages.add(page);
         // disk access's control in BufferPools.
         // but write to disk in this class.
@@ -250,6 +549,18 @@ public class HeapFile implements DbFile {
         return new FileIterator(tid);
     }
 
+    /**
+     * Returns an iterator over the tuples of this file projected onto the
+     * specified fields. The tuples have the TupleDesc returned by
+     * {@link #getTupleDesc(int[])} and the RecordIds of the stored tuples.
+     * Page formats that store fields separately decode only these fields.
+     *
+     * @param fields the indexes of the fields to return, in order
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields) {
+        return new FileIterator(tid, fields.clone());
+    }
+
 
 
 }
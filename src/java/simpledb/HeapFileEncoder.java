@@ -223,4 +223,34 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert a binary page file in the HeapPage format, as written by
+   * convert, into a file whose pages are compressed with PageCompressor,
+   * for use as a HeapFile with the COMPRESSED page format. <br>
+   *
+   * The page map of the output file is written next to it.
+   *
+   * @see HeapFile.PageFormat#COMPRESSED
+   * @see CompressedPageStore
+   * @param inFile The page file to read pages from
+   * @param outFile The output file to write compressed pages to
+   * @param npagebytes The number of bytes per page in both files
+   * @param td the schema of the tuples in the file
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void compress(File inFile, File outFile, int npagebytes, TupleDesc td)
+      throws IOException {
+      new File(outFile.getPath() + ".pmap").delete();
+      new FileOutputStream(outFile).close();
+      CompressedPageStore store = new CompressedPageStore(outFile);
+      PageChannel in = new PageChannel(inFile);
+      byte[] page = new byte[npagebytes];
+      int npages = (int) (inFile.length() / npagebytes);
+      for (int i = 0; i < npages; i++) {
+          in.read((long) i * npagebytes, page);
+          store.write(i, PageCompressor.compress(page, td));
+      }
+      in.close();
+      store.close();
+  }
 }
@@ -2,35 +2,58 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the page image it was read from and decodes a tuple only
+ * when it is first asked for, so tuples a scan never reaches (and fields a
+ * query never reads) are never allocated. Inserted tuples are held as
+ * objects and serialized when the page is written.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    /** Bytes in the page image; the page size of the file the page is in. */
+    final int pageSize;
+
+    /**
+     * The page image this page was read from. A used slot whose entry in
+     * tuples is null has not been decoded yet and is still read from here;
+     * the buffer itself is never modified.
+     */
+    private final ByteBuffer data;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId dirtyId;
+    /** LSN of the last update record logged for this page. */
+    private volatile long lsn;
+
+    private final boolean mapped;
+
+    /** True if data may be reused for another page once this one leaves the pool. */
+    private final boolean lent;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
-     * <p> where tuple size is the size of tuples in this
+     *          floor((page size*8) / (tuple size * 8 + 1))
+     * <p> where page size is the length of data (the page size of the file
+     * the page belongs to; see {@link DbFile#getPageSize}) and tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
@@ -41,27 +64,49 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage that decodes its contents directly from a buffer,
+     * such as a read-only view of a memory-mapped file, instead of copying
+     * the page into a byte array first. The buffer must hold exactly one
+     * page, in the format described in {@link #HeapPage(HeapPageId, byte[])},
+     * starting at its current position.
+     *
+     * @param mapped true if data is a view of a memory-mapped file; the
+     *   buffer pool treats such pages as cheap to evict
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data, boolean mapped) throws IOException {
+        this(id, data, mapped, false);
+    }
+
+    /**
+     * Create a HeapPage that decodes its contents from a buffer it only
+     * borrows, such as a frame of a {@link FrameArena}, which is reused for
+     * another page once this one leaves the buffer pool. Tuples are copied
+     * out of the buffer in full each time they are asked for, so they stay
+     * valid after that.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, boolean mapped, boolean lent) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.mapped = mapped;
+        this.lent = lent;
+        this.data = data.slice();
+        this.pageSize = this.data.remaining();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (this.data.remaining() < getHeaderSize() + numSlots * td.getSize()) {
+            throw new EOFException("page image too short");
+        }
 
-        // allocate and read the header slots of this page
+        // allocate and read the header slots of this page; tuples are
+        // decoded on demand by getTuple
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+            header[i] = this.data.get(i);
 
-        setBeforeImage();
+        tuples = new Tuple[numSlots];
     }
 
     /** Retrieve the number of tuples on this page.
@@ -69,9 +114,9 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        // floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+        // floor((pageSize*8) / (tuple size * 8 + 1))
         // bytes / (bytes for per tuple(tuple's size + header))
-        return (BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1);
+        return (pageSize*8) / (td.getSize() * 8 + 1);
 
     }
 
@@ -99,6 +144,11 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // not modified since it was read: the before image is the original image
+                oldDataRef = new byte[data.capacity()];
+                data.duplicate().get(oldDataRef);
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -124,37 +174,43 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the index in the page image of the first byte of a slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Returns the tuple last stored in the specified slot, decoding it from
+     * the page image the first time it is asked for. Fields of tuples on
+     * memory-mapped pages are decoded right away, since the mapping changes
+     * once the page is written back. A tuple on a borrowed buffer, which
+     * is reused once the page is evicted, is copied out in full on every
+     * access instead, so that a cached page keeps no tuple objects alive.
+     */
+    private Tuple tupleAt(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return t;
+        }
+        if (lent) {
+            t = new Tuple(td, data, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            t.decodeAll();
+            return t;
+        }
+        synchronized (tuples) {
+            t = tuples[slotId];
+            if (t == null) {
+                t = new Tuple(td, data, slotOffset(slotId));
+                t.setRecordId(new RecordId(pid, slotId));
+                if (mapped) {
+                    t.decodeAll();
+                }
+                tuples[slotId] = t;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return t;
         }
-
-        return t;
     }
 
     /**
@@ -169,7 +225,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        int len = pageSize;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -184,6 +240,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] slot = null;
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
@@ -199,6 +256,17 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy it from the page image
+            if (tuples[i] == null) {
+                if (slot == null)
+                    slot = new byte[td.getSize()];
+                ByteBuffer src = data.duplicate();
+                src.position(slotOffset(i));
+                src.get(slot);
+                baos.write(slot, 0, slot.length);
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -212,7 +280,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -239,8 +307,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generate a byte array corresponding to an empty HeapPage of the
+     * specified size, for files whose page size is not the default.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -253,19 +328,15 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        for(int i = 0; i < tuples.length; ++ i){
-            if(tuples[i] == null){
-                continue;
-            }
-            if(tuples[i].getRecordId().equals(t.getRecordId())){
-                if(!this.isSlotUsed(i)) {
-                    break;
-                }
-                markSlotUsed(i, false);
-                return ;
-            }
+        RecordId rid = t.getRecordId();
+        if(rid == null || !pid.equals(rid.getPageId())){
+            throw new DbException("no such tuple in this page");
+        }
+        int i = rid.getTupleNumber();
+        if(i < 0 || i >= numSlots || !isSlotUsed(i)){
+            throw new DbException("no such tuple in this page");
         }
-        throw new DbException("no such tuple in this page");
+        markSlotUsed(i, false);
     }
 
     /**
@@ -316,16 +387,43 @@ public class HeapPage implements Page {
         return dirtyId;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * Returns true if this page was decoded from a memory-mapped view of its
+     * file, so re-reading it after eviction costs no disk I/O.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Returns true if this page decodes its contents from a buffer it only
+     * borrows, such as a frame of a {@link FrameArena}.
+     */
+    public boolean isLent() {
+        return lent;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
+        // bits past numSlots in the last header byte are never set
         int result = 0;
-        for(int i = 0; i < numSlots / 8; ++ i){
-            for(int j = 0; j < 8; j ++) {
-                result += (header[i] >> j) & 1;
-            }
+        for(int i = 0; i < header.length; ++ i){
+            result += Integer.bitCount(header[i] & 0xff);
         }
         return numSlots - result;
     }
@@ -358,14 +456,36 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> tuplesArr = new ArrayList<>();
-        for(int i = 0; i < numSlots; ++ i){
-            if(isSlotUsed(i)){
-                tuplesArr.add(tuples[i]);
+        // iterate over the slots that are in use now; later inserts and
+        // deletes on this page do not change what the iterator returns
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && ((used[from/8] >> (from%8)) & 1) == 0) {
+                    from++;
+                }
+                return from;
             }
-        }
-        return tuplesArr.iterator();
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tupleAt(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
-
@@ -36,16 +36,14 @@ public class HeapPageId implements PageId {
     }
 
     /**
-     * @return a hash code for this page, represented by the concatenation of
-     *   the table number and the page number (needed if a PageId is used as a
-     *   key in a hash table in the BufferPool, for example.)
+     * @return a hash code for this page, combining the table number and the
+     *   page number (needed if a PageId is used as a key in a hash table in
+     *   the BufferPool, for example.)
      * @see BufferPool
      */
     public int hashCode() {
         // some code goes here
-        String left = String.valueOf(tableID);
-        String right = String.valueOf(pageNo);
-        return (left+right).hashCode();
+        return 31 * tableID + pageNo;
     }
 
     /**
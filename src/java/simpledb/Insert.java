@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -90,8 +92,8 @@ public class Insert extends Operator {
             try {
                 Database.getBufferPool().insertTuple(transactionId, tableId, child.next());
                 ++ count;
-            }catch (Exception e){
-                e.printStackTrace();
+            }catch (IOException e){
+                throw new DbException("io error: " + e.getMessage());
             }
         }
         // construct a 3-column table schema
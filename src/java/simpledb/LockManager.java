@@ -0,0 +1,590 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the page-level locks that BufferPool.getPage takes on
+ * behalf of transactions: shared locks for READ_ONLY access and exclusive
+ * locks for READ_WRITE access.
+ * <p>
+ * Each page has a queue of waiting requests, granted in FIFO order: a new
+ * shared request does not overtake an exclusive request that is already
+ * waiting. The exception is an upgrade, a request for an exclusive lock by
+ * a transaction that holds a shared lock on the page; it goes to the front
+ * of the queue and is granted as soon as the transaction is the only holder.
+ * <p>
+ * A waiting transaction sleeps on a condition of its own and is woken when
+ * its request is granted, so it waits exactly as long as the lock is held.
+ * <p>
+ * Deadlocks are found with a waits-for graph: a waiting transaction has an
+ * edge to every other holder of the lock it waits for and to every
+ * transaction queued ahead of it. A deadlock can only form when a
+ * transaction starts waiting, so the graph is searched for a cycle through
+ * that transaction right then. One transaction on the cycle is chosen by
+ * the {@link VictimPolicy} and its request fails with a
+ * TransactionAbortedException; the caller is expected to abort it, which
+ * releases its locks. A transaction that has waited longer than the lock
+ * timeout gives up the same way, but that is only a backstop.
+ * <p>
+ * The lock table is split into stripes by a hash of the page ID, each with
+ * its own latch, so requests for different pages rarely contend.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Default time a transaction waits for a lock before aborting. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    /** How the transaction to abort is chosen among those on a deadlock cycle. */
+    public enum VictimPolicy {
+        /** Abort the transaction that started last. */
+        YOUNGEST,
+        /** Abort the transaction holding the fewest locks, the youngest on a tie. */
+        LEAST_WORK
+    }
+
+    /** A request waiting in the queue of a page. */
+    private static final class Request {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        final Condition wakeup;
+        boolean granted;
+        /** Set when the request was chosen as a deadlock victim. */
+        boolean aborted;
+
+        Request(TransactionId tid, PageId pid, Permissions perm, Condition wakeup) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            this.wakeup = wakeup;
+        }
+    }
+
+    /** The lock on one page: its holders and its queue of waiters. */
+    private static final class PageLock {
+        /** The mode the holders hold the lock in, or null if it is free. */
+        Permissions mode;
+        final Set<TransactionId> holders = new HashSet<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+    }
+
+    private static final class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<PageId, PageLock> locks = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+
+    /** Pages each transaction holds a lock on. */
+    private final Map<TransactionId, Set<PageId>> transactionPages = new ConcurrentHashMap<>();
+
+    /**
+     * The waits-for graph: the transactions each waiting transaction waits
+     * for, and the request it waits on. Guarded by graphLatch, which is taken
+     * while holding a stripe latch, never the other way round.
+     */
+    private final ReentrantLock graphLatch = new ReentrantLock();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    private final Map<TransactionId, Request> waiting = new HashMap<>();
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong deadlockAborts = new AtomicLong();
+    private final AtomicLong timeoutAborts = new AtomicLong();
+    private final AtomicLong detectionNanos = new AtomicLong();
+    private final AtomicLong maxDetectionNanos = new AtomicLong();
+
+    /**
+     * Create a LockManager whose lock table is split into the specified
+     * number of stripes.
+     *
+     * @param numStripes the number of stripes, at least 1
+     */
+    public LockManager(int numStripes) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("a lock manager needs at least one stripe");
+        }
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeOf(PageId pid) {
+        int h = pid.hashCode() * 0x9E3779B9;
+        return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length)];
+    }
+
+    /** @return how long a transaction waits for a lock before aborting */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /** Set how long a transaction waits for a lock before aborting. */
+    public void setTimeoutMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative lock timeout");
+        }
+        timeoutMillis = millis;
+    }
+
+    /** @return how the victim of a deadlock is chosen */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Set how the victim of a deadlock is chosen. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        victimPolicy = policy;
+    }
+
+    /** @return the number of lock requests made */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /** @return the number of deadlocks found */
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of requests failed to break a deadlock */
+    public long getDeadlockAborts() {
+        return deadlockAborts.get();
+    }
+
+    /** @return the number of requests failed by the lock timeout */
+    public long getTimeoutAborts() {
+        return timeoutAborts.get();
+    }
+
+    /** @return the fraction of lock requests that failed */
+    public double getAbortRate() {
+        long n = getRequests();
+        return n == 0 ? 0 : (double) (getDeadlockAborts() + getTimeoutAborts()) / n;
+    }
+
+    /**
+     * @return the total time spent searching the waits-for graph, in
+     *   nanoseconds. The graph is searched when a request starts waiting,
+     *   and a deadlock is found by the search made as it forms, so this also
+     *   bounds the time from a deadlock forming to its victim being chosen.
+     */
+    public long getDetectionNanos() {
+        return detectionNanos.get();
+    }
+
+    /** @return the longest single search of the waits-for graph, in nanoseconds */
+    public long getMaxDetectionNanos() {
+        return maxDetectionNanos.get();
+    }
+
+    /**
+     * Acquire a lock on pid for tid, waiting until it is granted. Returns
+     * at once if tid already holds a lock at least as strong.
+     *
+     * @param tid the transaction asking for the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *   a deadlock, if the lock was not granted within the lock timeout, or
+     *   if the waiting thread was interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        requests.increment();
+        Stripe stripe = stripeOf(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null) {
+                lock = new PageLock();
+                stripe.locks.put(pid, lock);
+            }
+            boolean holds = lock.holders.contains(tid);
+            if (holds && (lock.mode == Permissions.READ_WRITE || perm == Permissions.READ_ONLY)) {
+                Debug.trace(Debug.LOCK_LEVEL, "lock.held", tid, pid, lock.mode);
+                return;
+            }
+            boolean upgrade = holds;
+            if ((upgrade || lock.waiters.isEmpty()) && grantable(lock, tid, perm)) {
+                grant(lock, tid, pid, perm);
+                return;
+            }
+
+            Request request = new Request(tid, pid, perm, stripe.latch.newCondition());
+            if (upgrade) {
+                lock.waiters.addFirst(request);
+            } else {
+                lock.waiters.addLast(request);
+            }
+            waits.increment();
+            startWaiting(lock, request);
+            // a cycle may contain a shorter one, which aborting its victim
+            // does not break, so look again until there is none
+            Request victim;
+            while (!request.granted && !request.aborted
+                    && (victim = findVictim(request.tid)) != null) {
+                if (victim == request) {
+                    giveUp(lock, pid, stripe, request);
+                    deadlockAborts.incrementAndGet();
+                    Debug.trace(Debug.LOCK_LEVEL, "lock.deadlock", tid, pid, perm);
+                    throw new TransactionAbortedException();
+                }
+                // the victim may wait in another stripe, and no thread holds
+                // two stripe latches at once
+                stripe.latch.unlock();
+                try {
+                    abortWaiter(victim);
+                } finally {
+                    stripe.latch.lock();
+                }
+            }
+            await(stripe, lock, pid, request);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Acquire a lock on pid for tid only if it can be granted at once,
+     * without waiting behind anyone.
+     *
+     * @return true if tid now holds a lock at least as strong as perm
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        requests.increment();
+        Stripe stripe = stripeOf(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null) {
+                lock = new PageLock();
+                stripe.locks.put(pid, lock);
+            }
+            boolean holds = lock.holders.contains(tid);
+            if (holds && (lock.mode == Permissions.READ_WRITE || perm == Permissions.READ_ONLY)) {
+                return true;
+            }
+            if ((holds || lock.waiters.isEmpty()) && grantable(lock, tid, perm)) {
+                grant(lock, tid, pid, perm);
+                return true;
+            }
+            if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+                stripe.locks.remove(pid);
+            }
+            return false;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Wait until request is granted. Caller must hold the stripe's latch. */
+    private void await(Stripe stripe, PageLock lock, PageId pid, Request request)
+            throws TransactionAbortedException {
+        long left = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!request.granted) {
+                if (request.aborted) {
+                    throw new TransactionAbortedException();
+                }
+                if (left <= 0) {
+                    giveUp(lock, pid, stripe, request);
+                    timeoutAborts.incrementAndGet();
+                    Debug.trace(Debug.LOCK_LEVEL, "lock.timeout", request.tid, pid, request.perm);
+                    throw new TransactionAbortedException();
+                }
+                left = request.wakeup.awaitNanos(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            giveUp(lock, pid, stripe, request);
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /** Withdraw a request that will no longer wait. */
+    private void giveUp(PageLock lock, PageId pid, Stripe stripe, Request request) {
+        if (lock.waiters.remove(request)) {
+            // the requests behind it may be grantable now
+            grantWaiters(lock, pid);
+            stopWaiting(lock, request);
+            if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+                stripe.locks.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Fail a request chosen as a deadlock victim, unless it was granted or
+     * withdrawn in the meantime.
+     */
+    private void abortWaiter(Request victim) {
+        Stripe stripe = stripeOf(victim.pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(victim.pid);
+            if (victim.granted || victim.aborted || lock == null
+                    || !lock.waiters.contains(victim)) {
+                return;
+            }
+            victim.aborted = true;
+            giveUp(lock, victim.pid, stripe, victim);
+            deadlockAborts.incrementAndGet();
+            Debug.trace(Debug.LOCK_LEVEL, "lock.deadlock", victim.tid, victim.pid, victim.perm);
+            victim.wakeup.signal();
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Add a request that has to wait to the waits-for graph. Caller must
+     * hold the stripe's latch.
+     */
+    private void startWaiting(PageLock lock, Request request) {
+        graphLatch.lock();
+        try {
+            waiting.put(request.tid, request);
+            updateEdges(lock);
+        } finally {
+            graphLatch.unlock();
+        }
+    }
+
+    /**
+     * Look for a cycle of the waits-for graph through tid.
+     *
+     * @return the request to fail to break the cycle, or null if there is none
+     */
+    private Request findVictim(TransactionId tid) {
+        graphLatch.lock();
+        try {
+            long start = System.nanoTime();
+            List<TransactionId> cycle = cycleThrough(tid);
+            long elapsed = System.nanoTime() - start;
+            detectionNanos.addAndGet(elapsed);
+            maxDetectionNanos.accumulateAndGet(elapsed, Math::max);
+            if (cycle == null) {
+                return null;
+            }
+            deadlocks.incrementAndGet();
+            return waiting.get(chooseVictim(cycle));
+        } finally {
+            graphLatch.unlock();
+        }
+    }
+
+    /** Remove a request that no longer waits from the waits-for graph. */
+    private void stopWaiting(PageLock lock, Request request) {
+        graphLatch.lock();
+        try {
+            if (waiting.get(request.tid) == request) {
+                waiting.remove(request.tid);
+                waitsFor.remove(request.tid);
+            }
+            updateEdges(lock);
+        } finally {
+            graphLatch.unlock();
+        }
+    }
+
+    /**
+     * Recompute the edges of the requests waiting on lock. Caller must hold
+     * the stripe's latch and graphLatch.
+     */
+    private void updateEdges(PageLock lock) {
+        Set<TransactionId> ahead = new HashSet<>(lock.holders);
+        for (Request r : lock.waiters) {
+            Set<TransactionId> edges = new HashSet<>(ahead);
+            edges.remove(r.tid);
+            waitsFor.put(r.tid, edges);
+            ahead.add(r.tid);
+        }
+    }
+
+    /**
+     * Return the transactions on a cycle of the waits-for graph through tid,
+     * or null if there is none. Caller must hold graphLatch.
+     */
+    private List<TransactionId> cycleThrough(TransactionId tid) {
+        LinkedList<TransactionId> path = new LinkedList<>();
+        return search(tid, tid, path, new HashSet<TransactionId>()) ? path : null;
+    }
+
+    private boolean search(TransactionId node, TransactionId target,
+            LinkedList<TransactionId> path, Set<TransactionId> visited) {
+        path.addLast(node);
+        Set<TransactionId> edges = waitsFor.get(node);
+        if (edges != null) {
+            for (TransactionId next : edges) {
+                if (next.equals(target)) {
+                    return true;
+                }
+                if (visited.add(next) && search(next, target, path, visited)) {
+                    return true;
+                }
+            }
+        }
+        path.removeLast();
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId tid : cycle) {
+            if (victim == null || betterVictim(tid, victim)) {
+                victim = tid;
+            }
+        }
+        return victim;
+    }
+
+    /** Return true if a is a better victim than b. */
+    private boolean betterVictim(TransactionId a, TransactionId b) {
+        if (victimPolicy == VictimPolicy.LEAST_WORK) {
+            int workA = locksHeld(a), workB = locksHeld(b);
+            if (workA != workB) {
+                return workA < workB;
+            }
+        }
+        return a.getId() > b.getId();
+    }
+
+    private int locksHeld(TransactionId tid) {
+        Set<PageId> pageIds = transactionPages.get(tid);
+        return pageIds == null ? 0 : pageIds.size();
+    }
+
+    private static boolean grantable(PageLock lock, TransactionId tid, Permissions perm) {
+        if (lock.holders.isEmpty()) {
+            return true;
+        }
+        if (perm == Permissions.READ_ONLY) {
+            return lock.mode == Permissions.READ_ONLY;
+        }
+        return lock.holders.size() == 1 && lock.holders.contains(tid);
+    }
+
+    private void grant(PageLock lock, TransactionId tid, PageId pid, Permissions perm) {
+        if (lock.holders.isEmpty() || perm == Permissions.READ_WRITE) {
+            lock.mode = perm;
+        }
+        if (lock.holders.add(tid)) {
+            Debug.trace(Debug.LOCK_LEVEL, "lock.grant", tid, pid, perm);
+        } else {
+            Debug.trace(Debug.LOCK_LEVEL, "lock.upgrade", tid, pid, perm);
+        }
+        transactionPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /** Grant waiting requests from the front of the queue while they fit. */
+    private void grantWaiters(PageLock lock, PageId pid) {
+        while (!lock.waiters.isEmpty()) {
+            Request next = lock.waiters.peekFirst();
+            if (!grantable(lock, next.tid, next.perm)) {
+                break;
+            }
+            lock.waiters.removeFirst();
+            grant(lock, next.tid, pid, next.perm);
+            next.granted = true;
+            next.wakeup.signal();
+            stopWaiting(lock, next);
+        }
+    }
+
+    /**
+     * Release the lock tid holds on pid, if any, and grant it to the
+     * transactions waiting for it.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pageIds = transactionPages.get(tid);
+        if (pageIds != null) {
+            pageIds.remove(pid);
+            if (pageIds.isEmpty()) transactionPages.remove(tid);
+        }
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release every lock tid holds.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pageIds = transactionPages.remove(tid);
+        if (pageIds != null) {
+            for (PageId pid : pageIds) {
+                unlock(tid, pid);
+            }
+        }
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null || !lock.holders.remove(tid)) {
+                return;
+            }
+            Debug.trace(Debug.LOCK_LEVEL, "lock.release", tid, pid, null);
+            if (lock.holders.isEmpty()) {
+                lock.mode = null;
+            }
+            grantWaiters(lock, pid);
+            if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+                stripe.locks.remove(pid);
+            } else if (!lock.waiters.isEmpty()) {
+                // the remaining waiters no longer wait for tid
+                graphLatch.lock();
+                try {
+                    updateEdges(lock);
+                } finally {
+                    graphLatch.unlock();
+                }
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Return true if tid holds a lock on pid. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pageIds = transactionPages.get(tid);
+        return pageIds != null && pageIds.contains(pid);
+    }
+
+    /** Return the pages tid holds a lock on, as of the call. */
+    public Set<PageId> pagesLockedBy(TransactionId tid) {
+        Set<PageId> pageIds = transactionPages.get(tid);
+        return pageIds == null ? Collections.<PageId>emptySet() : new HashSet<>(pageIds);
+    }
+
+    /** Return true if some transaction holds an exclusive lock on pid. */
+    public boolean isExclusivelyLocked(PageId pid) {
+        Stripe stripe = stripeOf(pid);
+        stripe.latch.lock();
+        try {
+            PageLock lock = stripe.locks.get(pid);
+            return lock != null && lock.mode == Permissions.READ_WRITE;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+}
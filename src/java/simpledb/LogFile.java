@@ -4,6 +4,11 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.LogRecord;
 
 /**
@@ -16,23 +21,39 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening).  BufferPool guards its pages with a latch per
+partition, and logs updates and forces the log holding one, while the
+log file drops BufferPool pages (on rollback and recovery) and asks for
+its dirty pages (on checkpoints.)  To keep that from deadlocking, the
+order is always a partition latch, then the LogFile monitor: nothing
+here may take a latch holding the LogFile monitor, so any LogFile
+operation that needs to access the BufferPool must not be declared
+synchronized and must do so outside its synchronized (this) blocks.
 
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+Checkpoints are fuzzy: a checkpoint writes no pages and does not hold
+the LogFile monitor while it looks at the BufferPool.  It records which
+transactions are live and which cached pages have update records that
+are not on disk yet (the dirty page table), and leaves writing the
+pages to the page cleaner.
 
-       ..
+<p>
+Records are not written to the file one field at a time: they are
+appended to an in-memory buffer, which is written to the file in one
+sequential write when it fills up or the log is forced.  Every record
+has a log sequence number (LSN): its offset in the log plus the number
+of bytes truncation has dropped from the front of the log, so that LSNs
+keep increasing.  A page carries the LSN of its last update record
+({@link Page#getLSN}), and only needs the log forced through that record
+before it is written ({@link #forceTo}).
 
-       }
-    }
-</pre>
+<p>
+Forcing the log does not need the monitor.  Threads that force at the
+same time share one force (group commit): one of them, the leader,
+forces everything appended so far, and the others wait for it and are
+done if it covered what they appended.  A commit appends its record
+holding the monitor but waits for the force without it, so other
+transactions keep appending while the log is forced.
 */
 
 /**
@@ -52,8 +73,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -62,11 +83,25 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records log an update that changed only part of a page.  They
+consist of the page's classes and id, as in a serialized Page, the
+length of the page, and a list of byte ranges, each an integer offset
+and length followed by the bytes of the range before and after the
+update (see {@link PageDelta}).  Applying the after bytes to the page
+as it was before the update redoes it; applying the before bytes to it
+as it was after undoes it.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then the
+long integer offset the checkpoint began at, an integer count of dirty
+pages, and for each the page's id, as in a serialized Page, and the long
+integer offset of its first record not on disk.  Every update record
+from the offset the checkpoint began at on may be missing from disk, and
+so may every record of a dirty page from its offset on; any other update
+was on disk when the checkpoint was taken.
 
 </ul>
 
@@ -75,7 +110,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private volatile RandomAccessFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -83,17 +118,68 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+
+    /**
+     * Changed byte ranges closer than this are logged as one, since each
+     * range costs two integers of its own.
+     */
+    static final int DELTA_GAP = 8;
+
+    /** Log updates as DELTA records where they are smaller than UPDATE records. */
+    private volatile boolean deltaRecords =
+            Boolean.parseBoolean(System.getProperty("simpledb.deltaLog", "true"));
+
+    /** Most bytes of records buffered before they are written to the file. */
+    static final int LOG_BUFFER_BYTES = 256 * 1024;
+
+    /** A buffer that writes itself to a file without copying. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer(int size) {
+            super(size);
+        }
+
+        void writeTo(RandomAccessFile f) throws IOException {
+            f.write(buf, 0, count);
+        }
+    }
+
+    /** Records appended but not yet written to the file. Protected by this. */
+    private final LogBuffer buffer = new LogBuffer(LOG_BUFFER_BYTES);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    /** Offset in the file the buffer goes to. Protected by this. */
+    private long writtenOffset = -1;
+    /** LSN of offset 0 of the file. Protected by this. */
+    private long lsnBase = 0;
+    /** LSN up to which records are written to the file. */
+    private volatile long writtenLsn = 0;
+    private long fileWrites = 0;//protected by this
+
+    /** Guards durableLsn and forcing. */
+    private final Object forceLock = new Object();
+    /** LSN up to which the log is known to be on disk. */
+    private long durableLsn = 0;
+    /** True while a thread forces the log or truncation replaces the file. */
+    private boolean forcing = false;
+    private long forces = 0;
+    private long commits = 0;
+    /** Held by the one checkpoint taken at a time. */
+    private final Object checkpointLock = new Object();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Threads recover() redoes pages with. */
+    private volatile int recoveryThreads = Integer.getInteger("simpledb.recoveryThreads",
+            Runtime.getRuntime().availableProcessors());
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -133,9 +219,53 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            writtenOffset = currentOffset;
+            writtenLsn = lsnBase + writtenOffset;
+        }
+        if (writtenOffset < 0) {
+            // recover() kept the log: append after its last record
+            if (raf.length() < LONG_SIZE) {
+                raf.setLength(0);
+                raf.seek(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+            }
+            writtenOffset = raf.length();
+            currentOffset = writtenOffset;
+            writtenLsn = lsnBase + writtenOffset;
         }
     }
 
+    /** Call after appending a record to the buffer. */
+    private void appended() throws IOException {
+        currentOffset = writtenOffset + buffer.size();
+        if (buffer.size() >= LOG_BUFFER_BYTES) {
+            writeBuffer();
+        }
+    }
+
+    /** Write the buffered records to the file, in one write. */
+    private void writeBuffer() throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        raf.seek(writtenOffset);
+        buffer.writeTo(raf);
+        writtenOffset += buffer.size();
+        buffer.reset();
+        writtenLsn = lsnBase + writtenOffset;
+        fileWrites++;
+    }
+
+    /** @return the LSN the next record appended will get */
+    public synchronized long getCurrentLsn() {
+        return lsnBase + currentOffset;
+    }
+
+    /** @return the number of writes of buffered records to the file */
+    public synchronized long getFileWrites() {
+        return fileWrites;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -145,27 +275,21 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            appended();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
@@ -174,21 +298,46 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = lsnBase + currentOffset;
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            appended();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait for the force outside the monitor, so that other
+        // committers can append their records and share it
+        forceTo(lsn);
+        synchronized (forceLock) {
+            commits++;
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return true if updates are logged as DELTA records where smaller */
+    public boolean isDeltaRecordsOn() {
+        return deltaRecords;
+    }
+
+    /**
+     * Log updates as DELTA records of the changed byte ranges where that is
+     * smaller than full before and after images, or always as UPDATE
+     * records. On unless the system property simpledb.deltaLog is false.
+     */
+    public void setDeltaRecords(boolean on) {
+        deltaRecords = on;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        Logs a DELTA record of the changed byte ranges instead where it
+        is smaller (see {@link #setDeltaRecords}).
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -198,8 +347,8 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
@@ -208,20 +357,32 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = lsnBase + currentOffset;
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        PageDelta delta = deltaRecords ? PageDelta.of(after, beforeData, afterData) : null;
+        if (delta != null && delta.size() < beforeData.length + afterData.length) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            delta.write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+            writePageData(out,before,beforeData);
+            writePageData(out,after,afterData);
+        }
+        out.writeLong(currentOffset);
+        appended();
+        after.setLSN(lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    void writePageData(DataOutput dos, Page p) throws IOException{
+        writePageData(dos, p, p.getPageData());
+    }
 
+    void writePageData(DataOutput dos, Page p, byte[] pageData) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -230,69 +391,407 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        PageRef.of(p).write(dos);
+        dos.writeInt(pageData.length);
+        dos.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    Page readPageData(DataInput raf) throws IOException {
+        PageRef ref = PageRef.read(raf);
+        int pageSize = raf.readInt();
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+        return ref.page(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * The classes and id of a logged page: enough to build the page from its
+     * bytes, as recovery must without the catalog's help.
+     */
+    static class PageRef {
+        final String pageClassName;
+        final String idClassName;
+        final int[] pageInfo;
+
+        PageRef(String pageClassName, String idClassName, int[] pageInfo) {
+            this.pageClassName = pageClassName;
+            this.idClassName = idClassName;
+            this.pageInfo = pageInfo;
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        static PageRef of(Page p) {
+            PageId pid = p.getId();
+            return new PageRef(p.getClass().getName(), pid.getClass().getName(), pid.serialize());
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        void write(DataOutput dos) throws IOException {
+            dos.writeUTF(pageClassName);
+            dos.writeUTF(idClassName);
+
+            dos.writeInt(pageInfo.length);
+            for (int i = 0; i < pageInfo.length; i++) {
+                dos.writeInt(pageInfo[i]);
+            }
+        }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+        static PageRef read(DataInput raf) throws IOException {
+            String pageClassName = raf.readUTF();
+            String idClassName = raf.readUTF();
             int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
+            int[] pageInfo = new int[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                pageInfo[i] = raf.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return new PageRef(pageClassName, idClassName, pageInfo);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        /** Build the id of the page. */
+        PageId id() throws IOException {
+            return pageId(idClassName, pageInfo);
+        }
+
+        /** Build the page from its bytes. */
+        Page page(byte[] pageData) throws IOException {
+            PageId pid = id();
+            try {
+                Class<?> pageClass = Class.forName(pageClassName);
+                Constructor<?> pageConst = pageClass.getDeclaredConstructor(pid.getClass(), byte[].class);
+                Page newPage = (Page)pageConst.newInstance(pid, pageData);
+                //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+                return newPage;
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
+                    | InvocationTargetException | NoSuchMethodException e) {
+                e.printStackTrace();
+                throw new IOException();
+            }
+        }
+    }
+
+    /**
+     * The body of a DELTA record: the byte ranges in which a page's image
+     * after an update differs from its image before.
+     */
+    static class PageDelta {
+        final PageRef page;
+        final int pageSize;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageDelta(PageRef page, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+            this.page = page;
+            this.pageSize = pageSize;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /**
+         * The ranges in which the images b and a of page p differ, or null if
+         * they are not the same length.
+         */
+        static PageDelta of(Page p, byte[] b, byte[] a) {
+            if (b.length != a.length) {
+                return null;
+            }
+            List<int[]> ranges = new ArrayList<int[]>();
+            int i = 0;
+            while (i < a.length) {
+                if (a[i] == b[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                // extend over changes no further than DELTA_GAP apart
+                for (int j = end; j < a.length && j < end + DELTA_GAP; j++) {
+                    if (a[j] != b[j]) {
+                        end = j + 1;
+                    }
+                }
+                ranges.add(new int[] { start, end });
+                i = end;
+            }
+            int[] offsets = new int[ranges.size()];
+            byte[][] before = new byte[ranges.size()][];
+            byte[][] after = new byte[ranges.size()][];
+            for (int r = 0; r < ranges.size(); r++) {
+                int[] range = ranges.get(r);
+                offsets[r] = range[0];
+                before[r] = Arrays.copyOfRange(b, range[0], range[1]);
+                after[r] = Arrays.copyOfRange(a, range[0], range[1]);
+            }
+            return new PageDelta(PageRef.of(p), a.length, offsets, before, after);
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        /** @return the number of bytes the ranges take to log */
+        int size() {
+            int size = 0;
+            for (byte[] range : after) {
+                size += 2 * INT_SIZE + 2 * range.length;
+            }
+            return size;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        void write(DataOutput dos) throws IOException {
+            page.write(dos);
+            dos.writeInt(pageSize);
+            dos.writeInt(offsets.length);
+            for (int r = 0; r < offsets.length; r++) {
+                dos.writeInt(offsets[r]);
+                dos.writeInt(after[r].length);
+                dos.write(before[r]);
+                dos.write(after[r]);
+            }
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
+        static PageDelta read(DataInput raf) throws IOException {
+            PageRef page = PageRef.read(raf);
+            int pageSize = raf.readInt();
+            int n = raf.readInt();
+            int[] offsets = new int[n];
+            byte[][] before = new byte[n][];
+            byte[][] after = new byte[n][];
+            for (int r = 0; r < n; r++) {
+                offsets[r] = raf.readInt();
+                before[r] = new byte[raf.readInt()];
+                after[r] = new byte[before[r].length];
+                raf.readFully(before[r]);
+                raf.readFully(after[r]);
+            }
+            return new PageDelta(page, pageSize, offsets, before, after);
+        }
+
+        /**
+         * Copy the after bytes of every range into image, to redo the
+         * update, or the before bytes, to undo it.
+         */
+        void apply(byte[] image, boolean redo) {
+            for (int r = 0; r < offsets.length; r++) {
+                byte[] range = redo ? after[r] : before[r];
+                System.arraycopy(range, 0, image, offsets[r], range.length);
+            }
+        }
+    }
+
+    /** Constructors of the id classes read, by name. */
+    private static final Map<String, Constructor<?>> idConstructors = new ConcurrentHashMap<>();
+
+    /** Build a page id of the named class from its serialized form. */
+    static PageId pageId(String idClassName, int[] pageInfo) throws IOException {
+        try {
+            Constructor<?> idConst = idConstructors.get(idClassName);
+            if (idConst == null) {
+                idConst = Class.forName(idClassName).getDeclaredConstructors()[0];
+                idConstructors.put(idClassName, idConst);
+            }
+            Object idArgs[] = new Object[pageInfo.length];
+            for (int i = 0; i < pageInfo.length; i++) {
+                idArgs[i] = Integer.valueOf(pageInfo[i]);
+            }
+            return (PageId)idConst.newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
+
+    /** Write a page id as its class name and serialized form. */
+    static void writePageId(DataOutput dos, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        dos.writeUTF(pid.getClass().getName());
+        dos.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            dos.writeInt(pageInfo[i]);
+        }
+    }
 
+    static PageId readPageId(DataInput raf) throws IOException {
+        String idClassName = raf.readUTF();
+        int[] pageInfo = new int[raf.readInt()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = raf.readInt();
+        }
+        return pageId(idClassName, pageInfo);
+    }
+
+    /** A record read back from the log by rollback or recovery. */
+    static class Record {
+        final int type;
+        final long tid;
+        final long offset;
+        /** The page of an UPDATE or DELTA record. */
+        PageRef page;
+        PageId pid;
+        /** The images of an UPDATE record. */
+        byte[] before;
+        byte[] after;
+        /** The ranges of a DELTA record. */
+        PageDelta delta;
+        /** The live transactions of a CHECKPOINT record, and their first records. */
+        Map<Long, Long> active;
+        /** Where a CHECKPOINT record's checkpoint began. */
+        long begin;
+        /** The dirty pages of a CHECKPOINT record, and their first records not on disk. */
+        Map<PageId, Long> dirty;
+
+        Record(int type, long tid, long offset) {
+            this.type = type;
+            this.tid = tid;
+            this.offset = offset;
+        }
+
+        /** @return true for an UPDATE or DELTA record */
+        boolean isUpdate() {
+            return page != null;
+        }
+
+        /**
+         * Apply the update to image, the page as it was before it, or null
+         * to read the page from disk if the update needs it.
+         *
+         * @return the page as it was after the update
+         */
+        byte[] redo(byte[] image) throws IOException {
+            if (after != null) {
+                return after.clone();
+            }
+            if (image == null) {
+                image = diskImage(pid);
+            }
+            delta.apply(image, true);
+            return image;
+        }
+
+        /**
+         * Take back the update from image, the page as it was after it, or
+         * null to read the page from disk if the update needs it.
+         *
+         * @return the page as it was before the update
+         */
+        byte[] undo(byte[] image) throws IOException {
+            if (before != null) {
+                return before.clone();
+            }
+            if (image == null) {
+                image = diskImage(pid);
+            }
+            delta.apply(image, false);
+            return image;
+        }
+    }
+
+    /** @return the bytes of the page on disk, bypassing the buffer pool */
+    static byte[] diskImage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
+
+    /** Counts the bytes read through it, to tell where each record starts. */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Reads the records of the log file from an offset on, through a buffer
+     * rather than with a read per field. It stops at the end of the file or
+     * at a record that a crash cut short.
+     */
+    private class RecordReader implements Closeable {
+        private final FileInputStream file;
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private final long start;
+        /** End of the last whole record read. */
+        long end;
+
+        RecordReader(long start) throws IOException {
+            this.start = start;
+            this.end = start;
+            file = new FileInputStream(logFile);
+            file.getChannel().position(start);
+            counter = new CountingInputStream(new BufferedInputStream(file, 64 * 1024));
+            in = new DataInputStream(counter);
+        }
+
+        /** @return the next record, or null if there is no whole one left */
+        Record next() throws IOException {
+            long offset = start + counter.count;
+            try {
+                Record r = new Record(in.readInt(), in.readLong(), offset);
+                switch (r.type) {
+                case UPDATE_RECORD:
+                    r.page = PageRef.read(in);
+                    r.before = new byte[in.readInt()];
+                    in.readFully(r.before);
+                    PageRef.read(in);
+                    r.after = new byte[in.readInt()];
+                    in.readFully(r.after);
+                    break;
+                case DELTA_RECORD:
+                    r.delta = PageDelta.read(in);
+                    r.page = r.delta.page;
+                    break;
+                case CHECKPOINT_RECORD:
+                    r.active = new HashMap<Long, Long>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        long tid = in.readLong();
+                        r.active.put(tid, in.readLong());
+                    }
+                    r.begin = in.readLong();
+                    r.dirty = new HashMap<PageId, Long>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        PageId pid = readPageId(in);
+                        r.dirty.put(pid, in.readLong());
+                    }
+                    break;
+                case ABORT_RECORD:
+                case COMMIT_RECORD:
+                case BEGIN_RECORD:
+                    break;
+                default:
+                    return null;
+                }
+                if (in.readLong() != offset) {
+                    return null;
+                }
+                if (r.page != null) {
+                    r.pid = r.page.id();
+                }
+                end = start + counter.count;
+                return r;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,60 +806,82 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Checkpoint the log and write a checkpoint record, without writing
+     * any page or stopping transactions meanwhile. The record lists the
+     * live transactions and the dirty page table of the buffer pool; the
+     * page cleaner is then asked to write the dirty pages, so that the
+     * next checkpoint lets more of the log go.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long begin;
+            synchronized (this) {
+                preAppend();
+                begin = lsnBase + currentOffset;
+            }
+            // an update logged from here on is redone whether or not its
+            // page made it into the table
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPages();
+            long startCpOffset;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = currentOffset;
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
+                }
+
+                //write the dirty page table
+                out.writeLong(begin - lsnBase);
+                out.writeInt(dirty.size());
+                for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                    writePageId(out, e.getKey());
+                    out.writeLong(e.getValue() - lsnBase);
                 }
+                out.writeLong(startCpOffset);
+                appended();
+            }
+            force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            synchronized (this) {
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
+            Database.getBufferPool().scheduleCleaning();
 
-        logTruncate();
+            logTruncate();
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -386,68 +907,123 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // redo may need everything from where the checkpoint began, and
+            // every record of a dirty page from its first one not on disk
+            minLogRecord = Math.min(minLogRecord, raf.readLong());
+            for (int numDirty = raf.readInt(); numDirty > 0; numDirty--) {
+                readPageId(raf);
+                minLogRecord = Math.min(minLogRecord, raf.readLong());
+            }
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
+        FileOutputStream newOut = new FileOutputStream(newFile);
+        DataOutputStream logNew = new DataOutputStream(new BufferedOutputStream(newOut, 64 * 1024));
         logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
+        //have to rewrite log records since offsets are different after
+        // truncation; pages are copied as bytes, without building them
+        try (FileInputStream oldIn = new FileInputStream(logFile)) {
+            oldIn.getChannel().position(minLogRecord);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(oldIn, 64 * 1024));
+            while (true) {
+                try {
+                    int type = in.readInt();
+                    long record_tid = in.readLong();
+                    long newStart = logNew.size();
+
+                    Debug.log("NEW START = " + newStart);
+
+                    logNew.writeInt(type);
+                    logNew.writeLong(record_tid);
+
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        for (int image = 0; image < 2; image++) {
+                            PageRef.read(in).write(logNew);
+                            byte[] pageData = new byte[in.readInt()];
+                            in.readFully(pageData);
+                            logNew.writeInt(pageData.length);
+                            logNew.write(pageData);
+                        }
+                        break;
+                    case DELTA_RECORD:
+                        PageDelta.read(in).write(logNew);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = in.readInt();
+                        logNew.writeInt(numXactions);
+                        while (numXactions-- > 0) {
+                            long xid = in.readLong();
+                            long xoffset = in.readLong();
+                            logNew.writeLong(xid);
+                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        }
+                        logNew.writeLong((in.readLong() - minLogRecord) + LONG_SIZE);
+                        int numDirty = in.readInt();
+                        logNew.writeInt(numDirty);
+                        while (numDirty-- > 0) {
+                            writePageId(logNew, readPageId(in));
+                            logNew.writeLong((in.readLong() - minLogRecord) + LONG_SIZE);
+                        }
+                        break;
+                    case BEGIN_RECORD:
+                        // the copy may start before the checkpoint, at the
+                        // BEGIN of transactions long finished
+                        if (tidToFirstLogRecord.containsKey(record_tid)) {
+                            tidToFirstLogRecord.put(record_tid,newStart);
+                        }
+                        break;
+                    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                    //all xactions finish with a pointer
+                    logNew.writeLong(newStart);
+                    in.readLong();
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                } catch (EOFException e) {
                     break;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // the records copied may not be on disk yet in the old file
+        logNew.flush();
+        newOut.getChannel().force(true);
+        logNew.close();
+
+        // no force may run on the file being replaced
+        synchronized (forceLock) {
+            while (forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            forcing = true;
+        }
+        try {
+            raf.close();
+            logFile.delete();
+            newFile.renameTo(logFile);
+            raf = new RandomAccessFile(logFile, "rw");
+            raf.seek(raf.length());
+            newFile.delete();
+            // the records keep their LSNs at their new offsets
+            lsnBase += minLogRecord - LONG_SIZE;
+            writtenOffset = raf.getFilePointer();
+            writtenLsn = lsnBase + writtenOffset;
+        } finally {
+            synchronized (forceLock) {
+                durableLsn = Math.max(durableLsn, writtenLsn);
+                forcing = false;
+                forceLock.notifyAll();
+            }
+        }
 
         currentOffset = raf.getFilePointer();
         //print();
@@ -458,16 +1034,64 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        The pages are rolled back from their images on disk. That relies
+        on every update record of a live transaction having been written
+        out with its page, as BufferPool's flushPage and flushAllPages do
+        even with the page cleaner on; only a commit leaves a logged page
+        unwritten, and a committed transaction is not rolled back.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        Set<PageId> rolledBack;
+        synchronized(this) {
+            preAppend();
+            // some code goes here
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null) {
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+            }
+            writeBuffer();
+            Map<PageId, List<Record>> byPage = new LinkedHashMap<PageId, List<Record>>();
+            try (RecordReader reader = new RecordReader(first)) {
+                for (Record r = reader.next(); r != null; r = reader.next()) {
+                    if (r.tid == tid.getId() && r.isUpdate()) {
+                        byPage.computeIfAbsent(r.pid, k -> new ArrayList<Record>()).add(r);
+                    }
+                }
+            }
+
+            // a page on disk is as of the last record logged for it:
+            // the records of a live transaction come from flushPage
+            // and flushAllPages, which write a page right after
+            // logging it (see above)
+            List<Page> restored = new ArrayList<Page>();
+            for (Map.Entry<PageId, List<Record>> e : byPage.entrySet()) {
+                List<Record> records = e.getValue();
+                byte[] current = diskImage(e.getKey());
+                byte[] image = current.clone();
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    image = records.get(i).undo(image);
+                }
+                if (!Arrays.equals(current, image)) {
+                    // log the rollback too, so that recovery redoes it
+                    PageRef ref = records.get(0).page;
+                    Page page = ref.page(image);
+                    logWrite(tid, ref.page(current), page);
+                    restored.add(page);
+                }
+            }
+            force();
+            for (Page page : restored) {
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
             }
+            rolledBack = byPage.keySet();
+        }
+        // drop the pages only now: the pool latches its pages while it logs
+        for (PageId pid : rolledBack) {
+            Database.getBufferPool().discardPage(pid);
         }
     }
 
@@ -475,38 +1099,221 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // a checkpoint writes no pages, so write them first
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /** @return the number of threads recover() redoes pages with */
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /**
+     * Set the number of threads recover() redoes pages with. It is the
+     * number of processors unless the system property
+     * simpledb.recoveryThreads sets it.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("recovery needs a thread, not " + threads);
+        }
+        recoveryThreads = threads;
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Analysis reads the log from the last checkpoint, which has every
+        page on disk as of when it was taken, and from the first records
+        of the transactions live then: a transaction that began but did
+        not commit or abort is a loser. Redo then repeats history from the
+        checkpoint, and undo takes back the losers' updates newest first.
+        An aborted transaction's rollback is logged, so it is redone like
+        any other update.
+        <p>
+        Both are done a page at a time: the records are split by page,
+        and the pages among {@link #getRecoveryThreads} threads, each of
+        which rebuilds its pages from their records and writes them. Two
+        phase locking keeps a page to one writer until it completes, so a
+        loser's updates of a page are the last ones logged for it and can
+        be undone without looking at other pages.
+        <p>
+        Recovery ends with a checkpoint, which lets the log go. If the
+        system crashes before then, recovery starts over from the same log
+        and arrives at the same pages.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        Set<PageId> recovered;
+        synchronized (this) {
+            recoveryUndecided = false;
+            // some code goes here
+            tidToFirstLogRecord.clear();
+            if (raf.length() < LONG_SIZE) {
+                return;
+            }
 
-                /* Phase 1. Analysis */
-                // seek
+            /* Phase 1. Analysis */
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            long begin = LONG_SIZE;
+            Map<Long, Long> active = Collections.emptyMap();
+            // the first record of each page that may not be on disk
+            Map<PageId, Long> redoFrom = new HashMap<PageId, Long>();
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                try (RecordReader reader = new RecordReader(cpLoc)) {
+                    Record cp = reader.next();
+                    if (cp == null || cp.type != CHECKPOINT_RECORD) {
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    active = cp.active;
+                    begin = cp.begin;
+                    redoFrom.putAll(cp.dirty);
+                }
+            }
+            long redoStart = begin;
+            for (long first : redoFrom.values()) {
+                redoStart = Math.min(redoStart, first);
+            }
+            long scanStart = redoStart;
+            for (long first : active.values()) {
+                scanStart = Math.min(scanStart, first);
+            }
+            List<Record> updates = new ArrayList<Record>();
+            long end;
+            try (RecordReader reader = new RecordReader(scanStart)) {
+                for (Record r = reader.next(); r != null; r = reader.next()) {
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        tidToFirstLogRecord.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        tidToFirstLogRecord.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        if (r.offset >= begin) {
+                            redoFrom.putIfAbsent(r.pid, r.offset);
+                        }
+                        // before the redo point only losers' updates matter
+                        if (r.offset >= redoStart || active.containsKey(r.tid)) {
+                            updates.add(r);
+                        }
+                        break;
+                    }
+                }
+                end = reader.end;
+            }
+            // drop a record the crash cut short, so appends follow the last whole one
+            if (end < raf.length()) {
+                raf.setLength(end);
+            }
+            Set<Long> losers = new HashSet<Long>(tidToFirstLogRecord.keySet());
+            Map<PageId, List<Record>> byPage = new LinkedHashMap<PageId, List<Record>>();
+            for (Record r : updates) {
+                if (redone(r, redoFrom) || losers.contains(r.tid)) {
+                    byPage.computeIfAbsent(r.pid, k -> new ArrayList<Record>()).add(r);
+                }
+            }
+
+            /* Phase 2 and 3. Redo and undo, a page at a time */
+            recoverPages(byPage, redoFrom, losers);
+            recovered = byPage.keySet();
+            Debug.log("RECOVERED " + byPage.size() + " PAGES FROM " + updates.size() + " RECORDS, "
+                    + losers.size() + " LOSERS");
+
+            tidToFirstLogRecord.clear();
+        }
+        // drop the pages only now: the pool latches its pages while it logs
+        for (PageId pid : recovered) {
+            Database.getBufferPool().discardPage(pid);
+            BufferPool.discarded(pid);
+        }
+        logCheckpoint();
+    }
 
-                // redo: (log recover phase)
-                // use disk to redo something that have not been done.
-                        // checkout point:
-                        // commit: write Page.
-                        //
+    /** @return true if r may not be on disk, by the dirty pages in redoFrom */
+    private static boolean redone(Record r, Map<PageId, Long> redoFrom) {
+        Long first = redoFrom.get(r.pid);
+        return first != null && r.offset >= first;
+    }
 
-                // undo: find ABORT_RECORD and related transactionId do rollback.
+    /**
+     * Redo the records of each page from its first in redoFrom on, undo the
+     * records of losers, and write the pages, the pages split among
+     * recovery threads.
+     */
+    private void recoverPages(Map<PageId, List<Record>> byPage, Map<PageId, Long> redoFrom,
+            Set<Long> losers)
+        throws IOException {
+        int threads = Math.max(1, Math.min(recoveryThreads, byPage.size()));
+        List<List<Map.Entry<PageId, List<Record>>>> parts = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            parts.add(new ArrayList<Map.Entry<PageId, List<Record>>>());
+        }
+        for (Map.Entry<PageId, List<Record>> e : byPage.entrySet()) {
+            parts.get(Math.floorMod(e.getKey().hashCode(), threads)).add(e);
+        }
+        if (threads == 1) {
+            recoverPages(parts.get(0), redoFrom, losers);
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (List<Map.Entry<PageId, List<Record>>> part : parts) {
+                done.add(workers.submit(() -> {
+                    recoverPages(part, redoFrom, losers);
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-         }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static void recoverPages(List<Map.Entry<PageId, List<Record>>> pages,
+            Map<PageId, Long> redoFrom, Set<Long> losers) throws IOException {
+        for (Map.Entry<PageId, List<Record>> e : pages) {
+            List<Record> records = e.getValue();
+            byte[] image = null;
+            for (Record r : records) {
+                if (redone(r, redoFrom)) {
+                    image = r.redo(image);
+                }
+            }
+            for (int i = records.size() - 1; i >= 0; i--) {
+                Record r = records.get(i);
+                if (losers.contains(r.tid)) {
+                    image = r.undo(image);
+                }
+            }
+            if (image != null) {
+                Page page = records.get(0).page.page(image);
+                Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).writePage(page);
+            }
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -515,8 +1322,82 @@ public class LogFile {
 
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything appended to the log so far to disk. */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            writeBuffer();
+            end = writtenLsn;
+        }
+        forceThrough(end);
+    }
+
+    /**
+     * Force the log to disk through the record at lsn, but not necessarily
+     * the records after it. Does nothing if that record is on disk already.
+     */
+    public void forceTo(long lsn) throws IOException {
+        if (writtenLsn <= lsn) {
+            synchronized (this) {
+                if (writtenLsn <= lsn) {
+                    writeBuffer();
+                }
+            }
+        }
+        forceThrough(lsn + 1);
+    }
+
+    /**
+     * Wait until the log is on disk up to LSN end. If no other thread is
+     * forcing the log, force it, covering every record written to the file
+     * by then; otherwise wait for that thread, and force again only if it
+     * did not cover end.
+     */
+    private void forceThrough(long end) throws IOException {
+        synchronized (forceLock) {
+            while (durableLsn < end && forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (durableLsn >= end) {
+                return;
+            }
+            forcing = true;
+        }
+        // the buffer is written to the file whole, so writtenLsn is always
+        // at the end of a record
+        long covered = writtenLsn;
+        boolean forced = false;
+        try {
+            raf.getChannel().force(true);
+            forced = true;
+        } finally {
+            synchronized (forceLock) {
+                if (forced) {
+                    durableLsn = Math.max(durableLsn, covered);
+                    forces++;
+                }
+                forcing = false;
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forces;
+        }
+    }
+
+    /** @return the number of commit records forced to disk */
+    public long getCommitCount() {
+        synchronized (forceLock) {
+            return commits;
+        }
     }
 
 }
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LruKPolicy evicts the page whose K-th most recent reference is oldest
+ * (the LRU-K algorithm of O'Neil, O'Neil and Weikum). A page referenced
+ * fewer than K times counts as infinitely old, so pages touched once by a
+ * scan go before pages in steady use, such as the internal pages of a
+ * B+ tree; ties are broken by the most recent reference, as in LRU.
+ * <p>
+ * A page that has just been referenced is not evicted, even if it has
+ * fewer than K references, until numPages / 4 further references have gone
+ * by (the correlated reference period of the paper). Otherwise a page read
+ * ahead of a scan would be the first victim before the scan reached it.
+ * <p>
+ * The reference history of a page is kept for a while after it is evicted,
+ * so that a page that comes back soon is recognized as frequently used.
+ * Histories of up to numPages evicted pages are kept.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private final int k;
+
+    /** References during which a newly referenced page is not evicted. */
+    private final int correlatedPeriod;
+
+    /** Logical clock, advanced on every reference. */
+    private long now;
+
+    /**
+     * Reference times by page, most recent first; 0 for references that
+     * have not happened. The arrays of cached pages are keys of queue and
+     * must not be changed while in it.
+     */
+    private final HashMap<PageId, long[]> history = new HashMap<PageId, long[]>();
+
+    /** Cached pages, in eviction order. */
+    private final TreeMap<long[], PageId> queue = new TreeMap<long[], PageId>((a, b) -> {
+        int c = Long.compare(a[a.length - 1], b[b.length - 1]);
+        return c != 0 ? c : Long.compare(a[0], b[0]);
+    });
+
+    /** Histories of evicted pages, oldest first. */
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    /**
+     * @param k the number of references to look back over
+     * @param numPages the number of evicted pages to remember
+     */
+    public LruKPolicy(int k, final int numPages) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+        this.k = k;
+        this.correlatedPeriod = numPages / 4;
+        this.retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > numPages;
+            }
+        };
+    }
+
+    /** Returns hist with a reference at the current time pushed in front. */
+    private long[] reference(long[] hist) {
+        long[] h = new long[k];
+        h[0] = ++now;
+        if (hist != null) {
+            System.arraycopy(hist, 0, h, 1, k - 1);
+        }
+        return h;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        long[] hist = history.get(pid);
+        if (hist != null) {
+            queue.remove(hist);
+        } else {
+            hist = retained.remove(pid);
+        }
+        hist = reference(hist);
+        history.put(pid, hist);
+        queue.put(hist, pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        long[] hist = history.get(pid);
+        if (hist != null) {
+            queue.remove(hist);
+            hist = reference(hist);
+            history.put(pid, hist);
+            queue.put(hist, pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] hist = history.remove(pid);
+        if (hist != null) {
+            queue.remove(hist);
+            retained.put(pid, hist);
+        }
+    }
+
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        PageId fallback = null;
+        for (Map.Entry<long[], PageId> e : queue.entrySet()) {
+            if (!evictable.test(e.getValue())) {
+                continue;
+            }
+            if (now - e.getKey()[0] > correlatedPeriod) {
+                return e.getValue();
+            }
+            if (fallback == null) {
+                fallback = e.getValue();
+            }
+        }
+        return fallback;
+    }
+}
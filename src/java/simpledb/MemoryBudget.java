@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A MemoryBudget caps the bytes that the buffer pool and memory-hungry
+ * operators, such as the hash table of {@link HashEquiJoin} and the sort
+ * buffer of {@link OrderBy}, hold between them. Each consumer reserves bytes
+ * before it uses them and releases them when it is done.
+ * <p>
+ * The buffer pool attached to the budget (see {@link #attach}) holds its
+ * capacity as its reservation. When an operator asks for more than is free,
+ * the pool gives back pages, down to a quarter of its size, and takes them
+ * again as it needs room once memory is free (see
+ * {@link BufferPool#resize}). An operator refused memory makes do with what
+ * it has: a hash join joins the tuples it has loaded so far, a sort spills
+ * a sorted run to disk.
+ * <p>
+ * The bytes are estimates of heap use (see {@link #tupleBytes}), not
+ * measurements, and memory given back by the pool is only freed as the pool
+ * evicts pages.
+ *
+ * @Threadsafe
+ */
+public class MemoryBudget {
+
+    /** Name the buffer pool reserves its capacity under. */
+    public static final String BUFFER_POOL = "BufferPool";
+
+    /**
+     * Default number of bytes in the budget: half the heap, unless the
+     * system property simpledb.memoryBudget sets it.
+     */
+    public static final long DEFAULT_LIMIT = Long.getLong("simpledb.memoryBudget",
+            Runtime.getRuntime().maxMemory() / 2);
+
+    private long limit;
+    private long used;
+    private long peak;
+    private long refusals;
+    private long reclaimed;
+    /** Bytes reserved by each consumer. */
+    private final Map<String, Long> usage = new HashMap<>();
+
+    /** The pool that gives back pages when an operator needs memory. */
+    private volatile BufferPool pool;
+
+    /** Creates a budget of DEFAULT_LIMIT bytes. */
+    public MemoryBudget() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /** Creates a budget of the specified number of bytes. */
+    public MemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Returns a rough estimate of the heap bytes one tuple of td takes: its
+     * fields' bytes plus the headers and references of the tuple and its
+     * field objects.
+     */
+    public static long tupleBytes(TupleDesc td) {
+        return 32 + 24L * td.numFields() + td.getSize();
+    }
+
+    /** @return the number of bytes consumers may reserve between them */
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Change the number of bytes in the budget. Lowering it below what is
+     * reserved takes nothing back; consumers are refused until enough has
+     * been released.
+     */
+    public synchronized void setLimit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative memory budget " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /** @return the number of bytes reserved by all consumers */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /** @return the number of bytes no consumer has reserved */
+    public synchronized long getAvailable() {
+        return Math.max(0, limit - used);
+    }
+
+    /** @return the most bytes reserved at once */
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /** @return the number of reservations refused for lack of memory */
+    public synchronized long getRefusals() {
+        return refusals;
+    }
+
+    /** @return the number of bytes the buffer pool gave back to operators */
+    public synchronized long getReclaimed() {
+        return reclaimed;
+    }
+
+    /** @return the number of bytes each consumer has reserved, by name */
+    public synchronized Map<String, Long> getUsage() {
+        return new HashMap<>(usage);
+    }
+
+    /** @return the number of bytes the named consumer has reserved */
+    public synchronized long getUsed(String consumer) {
+        return usage.getOrDefault(consumer, 0L);
+    }
+
+    /**
+     * Reserve bytes for the named consumer if they are free, asking the
+     * buffer pool to give back pages if they are not.
+     *
+     * @return true if the bytes were reserved
+     */
+    public boolean tryReserve(String consumer, long bytes) {
+        if (reserveIfFree(consumer, bytes)) {
+            return true;
+        }
+        BufferPool p = pool;
+        if (p != null && !BUFFER_POOL.equals(consumer)) {
+            // never call into the pool holding the monitor: it calls back
+            long shortfall;
+            synchronized (this) {
+                shortfall = used + bytes - limit;
+            }
+            long freed = p.reclaim(shortfall);
+            synchronized (this) {
+                reclaimed += freed;
+            }
+            if (reserveIfFree(consumer, bytes)) {
+                return true;
+            }
+        }
+        synchronized (this) {
+            refusals++;
+        }
+        return false;
+    }
+
+    /** Reserve bytes for the named consumer if they are free. */
+    synchronized boolean reserveIfFree(String consumer, long bytes) {
+        if (used + bytes > limit) {
+            return false;
+        }
+        reserve(consumer, bytes);
+        return true;
+    }
+
+    /**
+     * Reserve bytes for the named consumer whether or not they are free,
+     * for a consumer that cannot make progress without them.
+     */
+    public synchronized void reserve(String consumer, long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+        usage.merge(consumer, bytes, Long::sum);
+    }
+
+    /** Give back bytes the named consumer reserved. */
+    public synchronized void release(String consumer, long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        used -= bytes;
+        long left = usage.getOrDefault(consumer, 0L) - bytes;
+        if (left > 0) {
+            usage.put(consumer, left);
+        } else {
+            usage.remove(consumer);
+        }
+    }
+
+    /**
+     * Make pool the buffer pool of this budget, reserving its capacity, and
+     * release the capacity of the pool it replaces. The pool gets its
+     * capacity even if the budget does not have it free.
+     */
+    public void attach(BufferPool pool) {
+        BufferPool old = this.pool;
+        if (old != null) {
+            old.setMemoryBudget(null);
+        }
+        this.pool = pool;
+        pool.setMemoryBudget(this);
+    }
+
+    /**
+     * Bytes one operator holds, reserved from a budget in chunks so that
+     * an operator does not go to the budget for every tuple.
+     */
+    public static class Reservation {
+        /** Fewest bytes reserved from the budget at once. */
+        public static final long CHUNK = 64 * 1024;
+
+        private final MemoryBudget budget;
+        private final String consumer;
+        private long held;
+        private long used;
+
+        public Reservation(MemoryBudget budget, String consumer) {
+            this.budget = budget;
+            this.consumer = consumer;
+        }
+
+        /**
+         * Take bytes more, reserving them from the budget if they are not
+         * held already.
+         *
+         * @return false if the budget refused them
+         */
+        public boolean tryGrow(long bytes) {
+            if (used + bytes > held) {
+                long more = Math.max(CHUNK, used + bytes - held);
+                if (!budget.tryReserve(consumer, more)) {
+                    more = used + bytes - held;
+                    if (more >= CHUNK || !budget.tryReserve(consumer, more)) {
+                        return false;
+                    }
+                }
+                held += more;
+            }
+            used += bytes;
+            return true;
+        }
+
+        /** Take bytes more, even if the budget does not have them free. */
+        public void grow(long bytes) {
+            if (used + bytes > held) {
+                long more = used + bytes - held;
+                budget.reserve(consumer, more);
+                held += more;
+            }
+            used += bytes;
+        }
+
+        /** @return the number of bytes taken since the last release */
+        public long getUsed() {
+            return used;
+        }
+
+        /** Give back everything held to the budget. */
+        public void release() {
+            budget.release(consumer, held);
+            held = 0;
+            used = 0;
+        }
+    }
+}
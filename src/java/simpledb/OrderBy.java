@@ -1,9 +1,15 @@
 package simpledb;
 
+import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are sorted in memory, as many as the {@link MemoryBudget} of
+ * the database grants memory for. If the child has more, each full buffer is
+ * sorted and written to a temporary file as a run, and the runs are merged.
  */
 public class OrderBy extends Operator {
 
@@ -16,6 +22,30 @@ public class OrderBy extends Operator {
     private Iterator<Tuple> it;
     private boolean asc;
 
+    /** Fewest tuples a run holds, so that a starved budget does not make a run per tuple. */
+    public static final int MIN_RUN_TUPLES = 1000;
+
+    /** Memory reserved for childTups. */
+    transient private MemoryBudget.Reservation memory;
+    /** Sorted runs spilled to disk, and the number of tuples in each. */
+    private List<File> runs = new ArrayList<File>();
+    private List<Integer> runSizes = new ArrayList<Integer>();
+    /** Open run files, the tuples left in each and their next tuples, while merging runs. */
+    transient private List<DataInputStream> inputs;
+    transient private int[] left;
+    transient private PriorityQueue<Head> heads;
+
+    /** The next tuple of a run being merged. */
+    private static class Head {
+        final Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+    }
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -56,21 +86,127 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        // an open without a close in between starts over
+        discardRuns();
+        childTups.clear();
+        if (memory != null) {
+            memory.release();
+        }
+        memory = new MemoryBudget.Reservation(Database.getMemoryBudget(), "OrderBy");
+        long tupleBytes = MemoryBudget.tupleBytes(td);
+        // load the tuples in a collection, spilling it as a sorted run
+        // whenever the budget refuses memory for more
+        while (child.hasNext()) {
+            if (!memory.tryGrow(tupleBytes)) {
+                if (childTups.size() >= MIN_RUN_TUPLES) {
+                    spill();
+                    memory.release();
+                }
+                memory.grow(tupleBytes);
+            }
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(childTups, new TupleComparator(orderByField, asc));
+        } else {
+            spill();
+            memory.release();
+        }
+        rewind();
         super.open();
     }
 
+    /** Sort childTups and write them to a new run file, emptying childTups. */
+    private void spill() throws DbException {
+        Collections.sort(childTups, new TupleComparator(orderByField, asc));
+        try {
+            File f = File.createTempFile("orderby", ".run");
+            f.deleteOnExit();
+            try (DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(f)))) {
+                for (Tuple t : childTups) {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        t.getField(i).serialize(dos);
+                    }
+                }
+            }
+            runs.add(f);
+            runSizes.add(childTups.size());
+        } catch (IOException e) {
+            throw new DbException("could not spill a sorted run: " + e.getMessage());
+        }
+        childTups.clear();
+    }
+
+    /** Read the next tuple of run i into heads, if it has one left. */
+    private void advance(int i) throws DbException {
+        if (left[i] == 0) {
+            return;
+        }
+        left[i]--;
+        Tuple t = new Tuple(td);
+        try {
+            for (int f = 0; f < td.numFields(); f++) {
+                t.setField(f, td.getFieldType(f).parse(inputs.get(i)));
+            }
+        } catch (ParseException e) {
+            throw new DbException("could not read a sorted run: " + e.getMessage());
+        }
+        heads.add(new Head(t, i));
+    }
+
+    private void closeRuns() {
+        if (inputs != null) {
+            for (DataInputStream in : inputs) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            inputs = null;
+        }
+    }
+
+    /** Close and delete the run files. */
+    private void discardRuns() {
+        closeRuns();
+        for (File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+        runSizes.clear();
+    }
+
     public void close() {
         super.close();
         it = null;
+        discardRuns();
+        childTups.clear();
+        if (memory != null) {
+            memory.release();
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        closeRuns();
+        TupleComparator cmp = new TupleComparator(orderByField, asc);
+        heads = new PriorityQueue<Head>(runs.size(), (a, b) -> cmp.compare(a.tuple, b.tuple));
+        inputs = new ArrayList<DataInputStream>();
+        left = new int[runs.size()];
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                inputs.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)))));
+                left[i] = runSizes.get(i);
+                advance(i);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not read a sorted run: " + e.getMessage());
+        }
     }
 
     /**
@@ -82,6 +218,14 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (inputs != null) {
+            Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            advance(head.run);
+            return head.tuple;
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -7,7 +7,7 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -28,6 +28,16 @@ public interface Page {
      */
     public TransactionId isDirty();
 
+    /**
+     * Return the LSN of the last update record logged for this page, or 0
+     * if none has been since it was read. The log must be on disk through
+     * that record before the page is written.
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last update record logged for this page. */
+    public void setLSN(long lsn);
+
   /**
    * Set the dirty state of this page as dirtied by a particular transaction
    */
@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * PageChannel is the long-lived handle a DbFile uses to move whole pages
+ * between disk and memory. It keeps a single FileChannel open for the
+ * lifetime of the DbFile and uses positional reads and writes, so callers
+ * never reopen the file or seek a shared file pointer on a buffer pool miss.
+ * <p>
+ * Positional FileChannel operations do not touch the channel position, so
+ * concurrent reads and writes of different pages are safe without locking.
+ * The channel is opened lazily, read-only until the first write, and is
+ * reopened transparently after {@link #close}. A read or write that finds
+ * the channel closed under it, as when another thread using it was
+ * interrupted, reopens it and is retried once.
+ * <p>
+ * For read-mostly files, {@link #map} hands out read-only views of the file
+ * backed by MappedByteBuffers. The file is mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes so that files larger than 2GB can be mapped.
+ *
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    /** Bytes covered by one mapped segment. */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    /** Whether channel was opened for writing. */
+    private volatile boolean writable;
+
+    /** Mapped segments by index; a segment is remapped when the file grows. */
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Create a PageChannel backed by the specified file. The file is not
+     * opened until the first read or write.
+     *
+     * @param f the file to read pages from and write pages to
+     */
+    public PageChannel(File f) {
+        this.file = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        return channel(false);
+    }
+
+    /**
+     * @param write whether the channel must allow writes; a read-only one is
+     *   replaced by one opened for writing
+     */
+    private FileChannel channel(boolean write) throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen() || (write && !writable)) {
+            synchronized (this) {
+                c = channel;
+                if (c == null || !c.isOpen() || (write && !writable)) {
+                    boolean w = write || writable;
+                    FileChannel old = c;
+                    c = new RandomAccessFile(file, w ? "rw" : "r").getChannel();
+                    channel = c;
+                    writable = w;
+                    if (old != null) {
+                        // readers still using it retry on the new channel
+                        old.close();
+                    }
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Called when c was found closed during an operation.
+     *
+     * @return a fresh channel to retry the operation on
+     * @throws ClosedChannelException e again if the calling thread was
+     *   interrupted, as it would only close the new channel too
+     */
+    private FileChannel reopen(FileChannel c, ClosedChannelException e, boolean write)
+            throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw e;
+        }
+        synchronized (this) {
+            if (channel == c) {
+                channel = null;
+            }
+        }
+        return channel(write);
+    }
+
+    /**
+     * Read up to buf.length bytes starting at the specified file offset into
+     * buf. Reads stop early only at end of file.
+     *
+     * @param position the file offset of the first byte to read
+     * @param buf the destination buffer
+     * @return the number of bytes read, or -1 if position is at or past the end
+     *   of the file
+     */
+    public int read(long position, byte[] buf) throws IOException {
+        return read(position, ByteBuffer.wrap(buf));
+    }
+
+    /**
+     * Read into dst starting at the specified file offset until dst is full
+     * or the end of the file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the end
+     *   of the file
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        FileChannel c = channel();
+        boolean retried = false;
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n;
+            try {
+                n = c.read(dst, position + total);
+            } catch (ClosedChannelException e) {
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+                c = reopen(c, e, false);
+                continue;
+            }
+            if (n < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Write all of data at the specified file offset, extending the file if
+     * necessary.
+     */
+    public void write(long position, byte[] data) throws IOException {
+        FileChannel c = channel(true);
+        boolean retried = false;
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            try {
+                c.write(src, position + src.position());
+            } catch (ClosedChannelException e) {
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+                c = reopen(c, e, true);
+            }
+        }
+    }
+
+    /**
+     * Return a read-only view of length bytes of the file starting at the
+     * specified offset. The view is backed by a memory mapping of the file
+     * where possible, so no data is copied. A region that straddles two
+     * segments is copied into a heap buffer instead.
+     *
+     * @throws IllegalArgumentException if the region extends past the end of
+     *   the file
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        FileChannel c = channel();
+        long fileSize = c.size();
+        if (position < 0 || position + length > fileSize) {
+            throw new IllegalArgumentException("cannot map past end of file");
+        }
+        int seg = (int) (position / SEGMENT_SIZE);
+        int off = (int) (position % SEGMENT_SIZE);
+        if (off + length > SEGMENT_SIZE) {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            read(position, copy);
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+
+        ByteBuffer view;
+        synchronized (segments) {
+            while (segments.size() <= seg) {
+                segments.add(null);
+            }
+            MappedByteBuffer mb = segments.get(seg);
+            if (mb == null || mb.capacity() < off + length) {
+                long start = (long) seg * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, fileSize - start);
+                mb = c.map(FileChannel.MapMode.READ_ONLY, start, size);
+                segments.set(seg, mb);
+            }
+            view = mb.duplicate();
+        }
+        view.position(off);
+        view.limit(off + length);
+        return view.slice();
+    }
+
+    /** @return the current size of the underlying file, in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Close the underlying channel and drop any mapped segments. A later read
+     * or write reopens it.
+     */
+    public synchronized void close() throws IOException {
+        synchronized (segments) {
+            segments.clear();
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            writable = false;
+        }
+    }
+}
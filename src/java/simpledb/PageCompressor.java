@@ -0,0 +1,356 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PageCompressor turns the image of a HeapPage into a compact blob for
+ * storage on disk and back, column by column:
+ * <ul>
+ * <li>int columns are stored with frame-of-reference encoding (each value as
+ * its distance from the smallest value on the page, in as few bits as the
+ * largest distance needs) or, when that is smaller, the same encoding of the
+ * differences between consecutive values, which suits sorted or clustered
+ * columns;</li>
+ * <li>string columns are stored as a dictionary of the distinct values on
+ * the page followed by a bit-packed code per tuple.</li>
+ * </ul>
+ * Only used slots are stored. decompress rebuilds exactly the image that
+ * HeapPage.getPageData would produce: empty slots and string padding come
+ * back as zeros. A string column whose stored bytes would not come back
+ * exactly (nonzero padding, a bad length) is kept raw instead.
+ * <p>
+ * A blob is laid out as: the HeapPage header bitmap, then for each field an
+ * encoding byte followed by that column's data.
+ *
+ * @see HeapFile.PageFormat#COMPRESSED
+ */
+public class PageCompressor {
+
+    static final byte RAW = 0;
+    static final byte FRAME_OF_REFERENCE = 1;
+    static final byte DELTA = 2;
+    static final byte DICTIONARY = 3;
+
+    private PageCompressor() {
+    }
+
+    private static int numSlots(TupleDesc td, int pageSize) {
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private static int[] usedSlots(byte[] header, int numSlots) {
+        int n = 0;
+        for (byte b : header) {
+            n += Integer.bitCount(b & 0xff);
+        }
+        int[] used = new int[n];
+        int k = 0;
+        for (int i = 0; i < numSlots && k < n; i++) {
+            if (((header[i / 8] >> (i % 8)) & 1) == 1) {
+                used[k++] = i;
+            }
+        }
+        return used;
+    }
+
+    /** Number of bits needed to store values in [0, range]. */
+    private static int bitsFor(long range) {
+        return 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    /**
+     * Compress a page image in the HeapPage format for a table with the
+     * specified schema.
+     *
+     * @param page the page image, BufferPool.getPageSize() bytes long
+     * @param td the schema of the table the page belongs to
+     * @return the compressed blob
+     */
+    public static byte[] compress(byte[] page, TupleDesc td) {
+        int numSlots = numSlots(td, page.length);
+        int headerSize = (numSlots + 7) / 8;
+        byte[] header = Arrays.copyOf(page, headerSize);
+        int[] used = usedSlots(header, numSlots);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(page.length / 4);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.write(header);
+            int fieldOffset = headerSize;
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                if (type == Type.INT_TYPE) {
+                    writeInts(dos, page, used, fieldOffset, td.getSize());
+                } else {
+                    writeStrings(dos, page, used, fieldOffset, td.getSize());
+                }
+                fieldOffset += type.getLen();
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream do not fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+                | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    private static void writeInts(DataOutputStream dos, byte[] page, int[] used,
+            int fieldOffset, int tupleSize) throws IOException {
+        int n = used.length;
+        long[] v = new long[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = readInt(page, fieldOffset + used[i] * tupleSize);
+        }
+        if (n == 0) {
+            dos.writeByte(FRAME_OF_REFERENCE);
+            dos.writeInt(0);
+            dos.writeByte(0);
+            return;
+        }
+
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (long x : v) {
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+        }
+        int forBits = bitsFor(max - min);
+
+        // differences between neighbours; the first value is stored whole
+        long dmin = Long.MAX_VALUE, dmax = Long.MIN_VALUE;
+        for (int i = 1; i < n; i++) {
+            long d = v[i] - v[i - 1];
+            dmin = Math.min(dmin, d);
+            dmax = Math.max(dmax, d);
+        }
+        int deltaBits = n > 1 ? bitsFor(dmax - dmin) : 0;
+
+        if (n > 1 && (long) deltaBits * (n - 1) + 64 < (long) forBits * n) {
+            dos.writeByte(DELTA);
+            dos.writeInt((int) v[0]);
+            dos.writeLong(dmin);
+            dos.writeByte(deltaBits);
+            BitWriter bw = new BitWriter(dos);
+            for (int i = 1; i < n; i++) {
+                bw.write(v[i] - v[i - 1] - dmin, deltaBits);
+            }
+            bw.flush();
+        } else {
+            dos.writeByte(FRAME_OF_REFERENCE);
+            dos.writeInt((int) min);
+            dos.writeByte(forBits);
+            BitWriter bw = new BitWriter(dos);
+            for (long x : v) {
+                bw.write(x - min, forBits);
+            }
+            bw.flush();
+        }
+    }
+
+    private static void writeStrings(DataOutputStream dos, byte[] page, int[] used,
+            int fieldOffset, int tupleSize) throws IOException {
+        int len = Type.STRING_TYPE.getLen();
+        // key each value by its string bytes; give up on anything that would
+        // not be rebuilt byte for byte
+        HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        ArrayList<byte[]> dictionary = new ArrayList<byte[]>();
+        int[] code = new int[used.length];
+        boolean exact = true;
+        for (int i = 0; i < used.length && exact; i++) {
+            int pos = fieldOffset + used[i] * tupleSize;
+            int strLen = readInt(page, pos);
+            if (strLen < 0 || strLen > Type.STRING_LEN || strLen > 0xff) {
+                exact = false;
+                break;
+            }
+            for (int k = pos + 4 + strLen; k < pos + len; k++) {
+                if (page[k] != 0) {
+                    exact = false;
+                    break;
+                }
+            }
+            byte[] value = Arrays.copyOfRange(page, pos + 4, pos + 4 + strLen);
+            String key = new String(value, "ISO-8859-1");
+            Integer c = codes.get(key);
+            if (c == null) {
+                c = dictionary.size();
+                codes.put(key, c);
+                dictionary.add(value);
+            }
+            code[i] = c;
+        }
+
+        if (!exact || dictionary.size() > 0xffff) {
+            dos.writeByte(RAW);
+            for (int slot : used) {
+                dos.write(page, fieldOffset + slot * tupleSize, len);
+            }
+            return;
+        }
+
+        dos.writeByte(DICTIONARY);
+        dos.writeShort(dictionary.size());
+        for (byte[] value : dictionary) {
+            dos.writeByte(value.length);
+            dos.write(value);
+        }
+        int bits = bitsFor(Math.max(dictionary.size() - 1, 0));
+        dos.writeByte(bits);
+        BitWriter bw = new BitWriter(dos);
+        for (int c : code) {
+            bw.write(c, bits);
+        }
+        bw.flush();
+    }
+
+    /**
+     * Rebuild the HeapPage image a blob was made from.
+     *
+     * @param blob the output of {@link #compress}
+     * @param td the schema of the table the page belongs to
+     * @param pageSize the size of the page image to rebuild
+     * @throws IOException if the blob is corrupt
+     */
+    public static byte[] decompress(byte[] blob, TupleDesc td, int pageSize) throws IOException {
+        int numSlots = numSlots(td, pageSize);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        byte[] page = new byte[pageSize];
+        ByteBuffer in = ByteBuffer.wrap(blob);
+        try {
+            in.get(page, 0, headerSize);
+            int[] used = usedSlots(Arrays.copyOf(page, headerSize), numSlots);
+
+            int fieldOffset = headerSize;
+            for (int j = 0; j < td.numFields(); j++) {
+                int len = td.getFieldType(j).getLen();
+                byte encoding = in.get();
+                switch (encoding) {
+                case RAW:
+                    for (int slot : used) {
+                        in.get(page, fieldOffset + slot * tupleSize, len);
+                    }
+                    break;
+                case FRAME_OF_REFERENCE: {
+                    long min = in.getInt();
+                    int bits = in.get() & 0xff;
+                    BitReader br = new BitReader(in);
+                    for (int slot : used) {
+                        putInt(page, fieldOffset + slot * tupleSize, (int) (min + br.read(bits)));
+                    }
+                    break;
+                }
+                case DELTA: {
+                    long prev = in.getInt();
+                    long dmin = in.getLong();
+                    int bits = in.get() & 0xff;
+                    BitReader br = new BitReader(in);
+                    for (int i = 0; i < used.length; i++) {
+                        if (i > 0) {
+                            prev += br.read(bits) + dmin;
+                        }
+                        putInt(page, fieldOffset + used[i] * tupleSize, (int) prev);
+                    }
+                    break;
+                }
+                case DICTIONARY: {
+                    byte[][] dictionary = new byte[in.getShort() & 0xffff][];
+                    for (int k = 0; k < dictionary.length; k++) {
+                        dictionary[k] = new byte[in.get() & 0xff];
+                        in.get(dictionary[k]);
+                    }
+                    int bits = in.get() & 0xff;
+                    BitReader br = new BitReader(in);
+                    for (int slot : used) {
+                        int c = (int) br.read(bits);
+                        if (c >= dictionary.length) {
+                            throw new IOException("bad dictionary code");
+                        }
+                        int pos = fieldOffset + slot * tupleSize;
+                        putInt(page, pos, dictionary[c].length);
+                        System.arraycopy(dictionary[c], 0, page, pos + 4, dictionary[c].length);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("unknown column encoding " + encoding);
+                }
+                fieldOffset += len;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("compressed page is truncated");
+        }
+        return page;
+    }
+
+    /** Packs values of up to 56 bits, most significant bit first. */
+    private static class BitWriter {
+        private final DataOutputStream out;
+        private long acc;
+        private int n;
+
+        BitWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(long value, int bits) throws IOException {
+            if (bits == 0) {
+                return;
+            }
+            acc = (acc << bits) | (value & ((1L << bits) - 1));
+            n += bits;
+            while (n >= 8) {
+                n -= 8;
+                out.writeByte((int) (acc >>> n));
+            }
+        }
+
+        void flush() throws IOException {
+            if (n > 0) {
+                out.writeByte((int) (acc << (8 - n)));
+                acc = 0;
+                n = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads values written by BitWriter, leaving the buffer positioned just
+     * after the last byte it took from.
+     */
+    private static class BitReader {
+        private final ByteBuffer in;
+        private long acc;
+        private int n;
+
+        BitReader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        long read(int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            while (n < bits) {
+                acc = (acc << 8) | (in.get() & 0xff);
+                n += 8;
+            }
+            n -= bits;
+            return (acc >>> n) & ((1L << bits) - 1);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * PaxFile is a HeapFile whose pages use the column-by-column PAX layout of
+ * {@link PaxPage}. Tuples are inserted, deleted, locked and cached exactly as
+ * in a HeapFile; only the layout within each page differs. It suits
+ * analytic tables that are mostly read a few columns at a time with
+ * {@link #iterator(TransactionId, int[])}, which decodes only the
+ * requested fields.
+ * <p>
+ * A table is stored as a PaxFile when its schema line carries the
+ * <code>pax</code> option (see {@link Catalog#loadSchema}).
+ *
+ * @see PaxPage
+ */
+public class PaxFile extends HeapFile {
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     */
+    public PaxFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * Constructs a PAX file backed by the specified file whose pages are
+     * pageSize bytes long.
+     *
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean, HeapFile.PageFormat, int)
+     */
+    public PaxFile(File f, TupleDesc td, int pageSize) {
+        super(f, td, false, PageFormat.FIXED, pageSize);
+    }
+
+    @Override
+    protected TuplePage newPage(HeapPageId pid, byte[] data) throws IOException {
+        return new PaxPage(pid, data);
+    }
+}
@@ -0,0 +1,300 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * PaxPage is a page of a {@link PaxFile}. It holds the same tuples a
+ * HeapPage would, but stores them column by column (the PAX layout): after
+ * the header, each field of the table has its own minipage holding that
+ * field for every slot on the page. A scan that needs only a few fields
+ * reads only their minipages.
+ * <p>
+ * The header is a bitmap of used slots exactly as in HeapPage, and the
+ * number of slots for a given page size is the same. Minipage j starts at
+ * <pre>
+ *   header size + numSlots * (sum of the sizes of fields 0 .. j-1)
+ * </pre>
+ * and holds numSlots values of Type.getLen() bytes each, in the format
+ * written by Field.serialize.
+ *
+ * @see PaxFile
+ */
+public class PaxPage implements TuplePage {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+
+    /** The live page image; inserts and deletes update it in place. */
+    private final byte[] data;
+    private final ByteBuffer buf;
+
+    private final int headerSize;
+    /** Offset of the minipage of each field. */
+    private final int[] minipage;
+
+    /** Decoded whole tuples by slot, filled in lazily. */
+    private final Tuple[] tuples;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private TransactionId dirtyId;
+    /** LSN of the last update record logged for this page. */
+    private volatile long lsn;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = (data.length * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.minipage = new int[td.numFields()];
+        int offset = headerSize;
+        for (int j = 0; j < minipage.length; j++) {
+            minipage[j] = offset;
+            offset += numSlots * td.getFieldType(j).getLen();
+        }
+        this.data = data.clone();
+        this.buf = ByteBuffer.wrap(this.data);
+        this.tuples = new Tuple[numSlots];
+    }
+
+    /** @return the PageId associated with this page */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return ((data[i/8] >> (i%8)) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            data[i / 8] |= (1 << (i % 8));
+        } else {
+            data[i / 8] &= ~(1 << (i % 8));
+        }
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < headerSize; i++) {
+            used += Integer.bitCount(data[i] & 0xff);
+        }
+        return numSlots - used;
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /** Decode field j of the tuple in the specified slot. */
+    private Field fieldAt(int slot, int j) {
+        Type type = td.getFieldType(j);
+        try {
+            return type.parse(buf, minipage[j] + slot * type.getLen());
+        } catch (ParseException e) {
+            throw new RuntimeException("corrupt minipage", e);
+        }
+    }
+
+    private Tuple tupleAt(int slot) {
+        synchronized (tuples) {
+            Tuple t = tuples[slot];
+            if (t == null) {
+                t = new Tuple(td);
+                for (int j = 0; j < td.numFields(); j++) {
+                    t.setField(j, fieldAt(slot, j));
+                }
+                t.setRecordId(new RecordId(pid, slot));
+                tuples[slot] = t;
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Keep a copy of the page as it was before the first change since it was
+     * read or last committed; this is what getBeforeImage returns.
+     */
+    private void beforeWrite() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = data.clone();
+            }
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page, writing each field into its
+     * minipage.
+     * @throws DbException if the page is full
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                beforeWrite();
+                for (int j = 0; j < td.numFields(); j++) {
+                    int len = td.getFieldType(j).getLen();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+                    try {
+                        t.getField(j).serialize(new DataOutputStream(baos));
+                    } catch (IOException e) {
+                        throw new DbException("could not serialize field " + j);
+                    }
+                    System.arraycopy(baos.toByteArray(), 0, data, minipage[j] + i * len, len);
+                }
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("no capacity in this page");
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("no such tuple in this page");
+        }
+        int i = rid.getTupleNumber();
+        if (i < 0 || i >= numSlots || !isSlotUsed(i)) {
+            throw new DbException("no such tuple in this page");
+        }
+        beforeWrite();
+        markSlotUsed(i, false);
+        tuples[i] = null;
+    }
+
+    private int[] usedSlots() {
+        int n = numSlots - getNumEmptySlots();
+        int[] used = new int[n];
+        int k = 0;
+        for (int i = 0; i < numSlots && k < n; i++) {
+            if (isSlotUsed(i)) {
+                used[k++] = i;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        // decode now: a later insert may reuse a slot and overwrite its fields
+        ArrayList<Tuple> snapshot = new ArrayList<Tuple>();
+        for (int slot : usedSlots()) {
+            snapshot.add(tupleAt(slot));
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Returns the tuples on this page projected onto the specified fields,
+     * reading only the minipages of those fields.
+     */
+    @Override
+    public Iterator<Tuple> iterator(int[] fields, TupleDesc projected) {
+        int[] used = usedSlots();
+        ArrayList<Tuple> snapshot = new ArrayList<Tuple>(used.length);
+        for (int slot : used) {
+            Tuple p = new Tuple(projected);
+            for (int i = 0; i < fields.length; i++) {
+                p.setField(i, fieldAt(slot, fields[i]));
+            }
+            p.setRecordId(new RecordId(pid, slot));
+            snapshot.add(p);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, which
+     * the PaxPage constructor turns back into an identical page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * PaxPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generate a byte array corresponding to an empty PaxPage of the
+     * specified size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize];
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) {
+                // not modified since it was read
+                oldDataRef = data;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            oldData = getPageData();
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyId = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyId;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+}
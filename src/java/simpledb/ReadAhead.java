@@ -0,0 +1,77 @@
+package simpledb;
+
+/**
+ * ReadAhead watches the pages one HeapFile iterator visits and, once it sees the
+ * iterator moving through the file sequentially, asks the BufferPool to
+ * prefetch the next few pages in the background. By the time the iterator
+ * crosses into one of those pages it is usually already cached, so the scan
+ * does not stall on a synchronous read.
+ * <p>
+ * Each ReadAhead belongs to a single iterator and is not thread safe. Every
+ * page is requested at most once per sequential run; a jump backwards or
+ * over a gap ends the run and nothing more is prefetched until the iterator
+ * is moving forward one page at a time again.
+ *
+ * @see BufferPool#prefetch
+ */
+public class ReadAhead {
+
+    private final int tableId;
+
+    /**
+     * The page most recently visited, or -1 before the first one. Read by
+     * the prefetch thread to drop requests the iterator has already passed.
+     */
+    private volatile int lastPageNo = -1;
+
+    /** One past the last page already handed to the BufferPool. */
+    private int requestedTo = 0;
+
+    /**
+     * Create a ReadAhead for an iterator over the specified table.
+     *
+     * @param tableId the table whose pages are prefetched
+     */
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * Record that the iterator has moved to the specified page, and prefetch
+     * the pages after it if the access pattern is sequential.
+     *
+     * @param pgNo the page the iterator now reads
+     * @param numPages the number of pages in the file; nothing at or past
+     *   this page is prefetched
+     */
+    public void pageAccessed(int pgNo, int numPages) {
+        boolean sequential = pgNo == lastPageNo + 1;
+        lastPageNo = pgNo;
+        if (!sequential) {
+            requestedTo = pgNo + 1;
+            return;
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        int end = Math.min(pgNo + 1 + bufferPool.getPrefetchWindow(), numPages);
+        for (int i = Math.max(requestedTo, pgNo + 1); i < end; i++) {
+            bufferPool.prefetch(new HeapPageId(tableId, i), this);
+        }
+        requestedTo = Math.max(requestedTo, end);
+    }
+
+    /**
+     * Returns true if the iterator has not yet reached the specified page, so
+     * reading it ahead is still worthwhile.
+     */
+    public boolean wants(PageId pid) {
+        return pid.getPageNumber() > lastPageNo;
+    }
+
+    /**
+     * Forget the access history, e.g. when the iterator is rewound.
+     */
+    public void reset() {
+        lastPageNo = -1;
+        requestedTo = 0;
+    }
+}
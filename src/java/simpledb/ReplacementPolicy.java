@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * A ReplacementPolicy decides which page the BufferPool evicts when it needs
+ * room. The pool tells the policy about every page that enters the pool,
+ * every hit on a cached page and every page that leaves, and asks it for a
+ * victim when it is full. Which pages may be evicted at all (e.g. dirty
+ * pages may not) is up to the pool, which passes that test to
+ * {@link #victim}.
+ * <p>
+ * Implementations must be thread-safe: hits are reported without holding
+ * the pool's monitor.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /** Called when pid is added to the pool. */
+    public void pageAdded(PageId pid);
+
+    /** Called when a getPage call finds pid in the pool. */
+    public void pageAccessed(PageId pid);
+
+    /** Called when pid leaves the pool, whether evicted or discarded. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Returns the cached page this policy would evict first among those for
+     * which evictable returns true, or null if there is none. The page stays
+     * cached until the pool calls pageRemoved.
+     */
+    public PageId victim(Predicate<PageId> evictable);
+
+    /**
+     * Returns a new policy by name: <code>clock</code>, <code>lru-k</code>
+     * (with K = 2) or <code>2q</code>.
+     *
+     * @param name the name of the policy, case insensitive
+     * @param numPages the number of pages the pool holds
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static ReplacementPolicy forName(String name, int numPages) {
+        switch (name.toLowerCase()) {
+        case "clock":
+            return new ClockPolicy();
+        case "lru-k":
+        case "lru-2":
+            return new LruKPolicy(2, numPages);
+        case "2q":
+            return new TwoQPolicy(numPages);
+        default:
+            throw new IllegalArgumentException("unknown replacement policy " + name);
+        }
+    }
+}
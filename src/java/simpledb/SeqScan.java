@@ -21,6 +21,9 @@ public class SeqScan implements OpIterator {
     private DbFile dbFile;
 
     private DbFileIterator dbFileIterator;
+
+    /** The TupleDesc of a projecting scan, or null. */
+    private TupleDesc projected;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -82,6 +85,33 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan that returns only the specified fields of
+     * each tuple of a table stored in a HeapFile. Tables stored column by
+     * column ({@link PaxFile}) decode only these fields.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param fields
+     *            the indexes of the fields to return, in order
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this.transactionId = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(dbFile instanceof HeapFile)) {
+            throw new IllegalArgumentException("column projection needs a HeapFile");
+        }
+        this.projected = ((HeapFile) dbFile).getTupleDesc(fields);
+        this.dbFileIterator = ((HeapFile) dbFile).iterator(tid, fields);
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -104,6 +134,9 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        if (projected != null) {
+            return projected;
+        }
         return dbFile.getTupleDesc();
     }
 
@@ -0,0 +1,434 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedPage is a HeapFile page that stores variable-length records behind
+ * a slot directory, so a string takes only as many bytes as it has
+ * characters instead of the Type.STRING_LEN bytes a HeapPage reserves for it.
+ * <p>
+ * The page image is laid out as follows (all numbers are big-endian
+ * unsigned shorts):
+ * <pre>
+ *   0: number of entries in the slot directory
+ *   2: offset of the first byte of the record area (0 on an empty page)
+ *   4: slot directory, 4 bytes per entry: record offset, record length
+ *      ... free space ...
+ *      record area, growing down from the end of the page
+ * </pre>
+ * A directory entry with offset 0 is an empty slot. A record holds the
+ * fields of a tuple in order: an int is 4 bytes, a string is a 2-byte length
+ * followed by that many bytes.
+ * <p>
+ * Slot numbers are stable: the RecordId of a tuple stays valid until the
+ * tuple is deleted. Deleting a record leaves a hole in the record area. When
+ * an insert does not fit in the contiguous free space but would fit if the
+ * holes were reclaimed, the page is compacted by sliding the live records to
+ * the end of the page and updating their directory entries.
+ *
+ * @see HeapFile.PageFormat#SLOTTED
+ */
+public class SlottedPage implements TuplePage {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+
+    /** The live page image; inserts, deletes and compaction update it in place. */
+    private final byte[] data;
+    private final ByteBuffer buf;
+
+    /** Decoded tuples by slot, filled in lazily; null for empty slots too. */
+    private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+
+    private int numSlots;
+    private int recordStart;
+    /** Bytes held by live records. */
+    private int usedBytes;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private TransactionId dirtyId;
+    /** LSN of the last update record logged for this page. */
+    private volatile long lsn;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in the
+     * format described above. An all-zero image is an empty page.
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        if (data.length > 1 << 16) {
+            throw new IOException("slotted pages are limited to 64KB");
+        }
+        this.data = data.clone();
+        this.buf = ByteBuffer.wrap(this.data);
+        this.numSlots = getShort(0);
+        this.recordStart = getShort(2);
+        if (recordStart == 0) {
+            recordStart = this.data.length;
+        }
+        if (HEADER_SIZE + numSlots * SLOT_SIZE > recordStart) {
+            throw new IOException("corrupt slot directory");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            tuples.add(null);
+            if (slotOffset(i) != 0) {
+                usedBytes += slotLength(i);
+            }
+        }
+    }
+
+    private int getShort(int pos) {
+        return buf.getShort(pos) & 0xffff;
+    }
+
+    private void putShort(int pos, int value) {
+        buf.putShort(pos, (short) value);
+    }
+
+    private int slotOffset(int slot) {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int slotLength(int slot) {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        putShort(HEADER_SIZE + slot * SLOT_SIZE, offset);
+        putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    private void setNumSlots(int n) {
+        numSlots = n;
+        putShort(0, n);
+    }
+
+    private void setRecordStart(int start) {
+        recordStart = start;
+        putShort(2, start == data.length ? 0 : start);
+    }
+
+    /** @return the PageId associated with this page */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** Returns true if the specified slot holds a tuple. */
+    public boolean isSlotUsed(int slot) {
+        return slot >= 0 && slot < numSlots && slotOffset(slot) != 0;
+    }
+
+    /**
+     * Returns the number of bytes a record for t takes in the record area.
+     */
+    private int recordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                size += 4;
+            } else {
+                size += 2 + stringLength((StringField) t.getField(i));
+            }
+        }
+        return size;
+    }
+
+    private static int stringLength(StringField f) {
+        return Math.min(f.getValue().length(), Type.STRING_LEN);
+    }
+
+    /** The size of the smallest record this table can have. */
+    private int minRecordSize() {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            size += td.getFieldType(i) == Type.INT_TYPE ? 4 : 2;
+        }
+        return size;
+    }
+
+    /** Free bytes, counting holes left by deleted records. */
+    private int freeBytes() {
+        return data.length - HEADER_SIZE - numSlots * SLOT_SIZE - usedBytes;
+    }
+
+    /** Index of the first empty directory entry, or numSlots if there is none. */
+    private int firstEmptySlot() {
+        int i = 0;
+        while (i < numSlots && slotOffset(i) != 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of tuples of the smallest possible size that would
+     * still fit on this page.
+     */
+    public int getNumEmptySlots() {
+        int free = freeBytes();
+        int min = minRecordSize();
+        int reusable = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (slotOffset(i) == 0) {
+                reusable++;
+            }
+        }
+        // empty directory entries are reused before new ones are added
+        int n = Math.min(reusable, free / min);
+        free -= n * min;
+        return n + free / (min + SLOT_SIZE);
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int need = recordSize(t);
+        if (firstEmptySlot() == numSlots) {
+            need += SLOT_SIZE;
+        }
+        return need <= freeBytes();
+    }
+
+    /**
+     * Adds the specified tuple to the page, compacting the record area first
+     * if the free space is fragmented.
+     * @throws DbException if the tuple does not fit on the page
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!hasRoomFor(t)) {
+            throw new DbException("no capacity in this page");
+        }
+        beforeWrite();
+        int slot = firstEmptySlot();
+        int dirEnd = HEADER_SIZE + (slot == numSlots ? numSlots + 1 : numSlots) * SLOT_SIZE;
+        int size = recordSize(t);
+        if (recordStart - size < dirEnd) {
+            compact();
+        }
+        int offset = recordStart - size;
+        writeRecord(t, offset);
+        setRecordStart(offset);
+        if (slot == numSlots) {
+            tuples.add(null);
+            setNumSlots(numSlots + 1);
+        }
+        setSlot(slot, offset, size);
+        usedBytes += size;
+        t.setRecordId(new RecordId(pid, slot));
+        tuples.set(slot, t);
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its bytes become a hole that
+     * the next compaction reclaims.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber())) {
+            throw new DbException("no such tuple in this page");
+        }
+        int slot = rid.getTupleNumber();
+        beforeWrite();
+        usedBytes -= slotLength(slot);
+        if (slotOffset(slot) == recordStart) {
+            setRecordStart(recordStart + slotLength(slot));
+        }
+        setSlot(slot, 0, 0);
+        tuples.set(slot, null);
+        // trailing empty entries can go; no live RecordId refers to them
+        int n = numSlots;
+        while (n > 0 && slotOffset(n - 1) == 0) {
+            n--;
+            tuples.remove(n);
+        }
+        setNumSlots(n);
+        if (usedBytes == 0) {
+            setRecordStart(data.length);
+        }
+    }
+
+    /**
+     * Keep a copy of the page as it was before the first change since it was
+     * read or last committed; this is what getBeforeImage returns.
+     */
+    private void beforeWrite() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = data.clone();
+            }
+        }
+    }
+
+    /**
+     * Slide all live records to the end of the page, in place, so the free
+     * space between the slot directory and the record area is contiguous.
+     */
+    void compact() {
+        Integer[] live = new Integer[numSlots];
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (slotOffset(i) != 0) {
+                live[n++] = i;
+            }
+        }
+        // move records nearest the end first so none is overwritten
+        Arrays.sort(live, 0, n, (a, b) -> slotOffset(b) - slotOffset(a));
+        int end = data.length;
+        for (int k = 0; k < n; k++) {
+            int slot = live[k];
+            int len = slotLength(slot);
+            end -= len;
+            System.arraycopy(data, slotOffset(slot), data, end, len);
+            setSlot(slot, end, len);
+        }
+        setRecordStart(end);
+        Arrays.fill(data, HEADER_SIZE + numSlots * SLOT_SIZE, end, (byte) 0);
+    }
+
+    private void writeRecord(Tuple t, int offset) {
+        int pos = offset;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                buf.putInt(pos, ((IntField) t.getField(i)).getValue());
+                pos += 4;
+            } else {
+                String s = ((StringField) t.getField(i)).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                putShort(pos, len);
+                pos += 2;
+                // same encoding as StringField.serialize: the low byte of each char
+                for (int j = 0; j < len; j++) {
+                    data[pos++] = (byte) s.charAt(j);
+                }
+            }
+        }
+    }
+
+    private Tuple readRecord(int slot) {
+        Tuple t = new Tuple(td);
+        int pos = slotOffset(slot);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(buf.getInt(pos)));
+                pos += 4;
+            } else {
+                int len = getShort(pos);
+                pos += 2;
+                t.setField(i, new StringField(new String(data, pos, len), Type.STRING_LEN));
+                pos += len;
+            }
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    /** Returns the tuple in the specified slot, decoding it the first time. */
+    private Tuple tupleAt(int slot) {
+        synchronized (tuples) {
+            Tuple t = tuples.get(slot);
+            if (t == null) {
+                t = readRecord(slot);
+                tuples.set(slot, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, which
+     * the SlottedPage constructor turns back into an identical page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generate a byte array corresponding to an empty SlottedPage of the
+     * specified size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize];
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) {
+                // not modified since it was read
+                oldDataRef = data;
+            }
+            return new SlottedPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            oldData = getPageData();
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyId = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyId;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        // iterate over the slots that are in use now
+        ArrayList<Integer> used = new ArrayList<Integer>();
+        for (int i = 0; i < numSlots; i++) {
+            if (slotOffset(i) != 0) {
+                used.add(i);
+            }
+        }
+        // decode them now: a later insert may compact the page and move
+        // their records, and a later delete may clear their slots
+        final ArrayList<Tuple> snapshot = new ArrayList<Tuple>(used.size());
+        for (int slot : used) {
+            snapshot.add(tupleAt(slot));
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * TraceRing keeps the most recent trace events in a fixed-size ring, so
+ * that they can be examined after something has gone wrong without paying
+ * for console output while it runs. Recording an event takes no lock; the
+ * arguments are kept as they are and only formatted when the ring is read.
+ *
+ * @Threadsafe
+ */
+public class TraceRing {
+
+    /** One recorded event. */
+    public static final class Event {
+        private final long seq;
+        private final long nanos;
+        private final String thread;
+        private final String name;
+        private final Object a, b, c;
+
+        Event(long seq, String name, Object a, Object b, Object c) {
+            this.seq = seq;
+            this.nanos = System.nanoTime();
+            this.thread = Thread.currentThread().getName();
+            this.name = name;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        /** @return the event's name */
+        public String getName() {
+            return name;
+        }
+
+        /** @return the event's arguments, null where none was given */
+        public Object[] getArgs() {
+            return new Object[] { a, b, c };
+        }
+
+        /** @return System.nanoTime() when the event was recorded */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(nanos).append(' ').append(thread).append(' ').append(name);
+            for (Object arg : getArgs()) {
+                if (arg != null) {
+                    sb.append(' ').append(arg);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final AtomicReferenceArray<Event> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Create a ring that keeps the last capacity events.
+     *
+     * @param capacity the number of events kept, at least 1
+     */
+    public TraceRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("a trace ring needs at least one slot");
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /** Record an event, overwriting the oldest one if the ring is full. */
+    public void add(String name, Object a, Object b, Object c) {
+        long seq = next.getAndIncrement();
+        slots.lazySet((int) (seq % slots.length()), new Event(seq, name, a, b, c));
+    }
+
+    /** @return the number of events recorded so far, kept or not */
+    public long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Return the events still in the ring, oldest first. Events recorded
+     * while this runs may be missing.
+     */
+    public List<Event> events() {
+        long end = next.get();
+        List<Event> events = new ArrayList<>();
+        for (long seq = Math.max(0, end - slots.length()); seq < end; seq++) {
+            Event e = slots.get((int) (seq % slots.length()));
+            if (e != null && e.seq == seq) {
+                events.add(e);
+            }
+        }
+        return events;
+    }
+
+    /** Print the events still in the ring, oldest first. */
+    public void dump(PrintStream out) {
+        for (Event e : events()) {
+            out.println(e);
+        }
+    }
+}
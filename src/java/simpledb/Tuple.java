@@ -1,6 +1,10 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -9,6 +13,10 @@ import java.util.Iterator;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be backed by the serialized page bytes, in
+ * which case each field is decoded the first time {@link #getField} asks
+ * for it. Fields that are never read are never allocated.
  */
 public class Tuple implements Serializable {
 
@@ -20,6 +28,15 @@ public class Tuple implements Serializable {
 
     private ArrayList<Field> fields;
 
+    /** Serialized form of the undecoded fields, or null once all are decoded. */
+    private transient volatile ByteBuffer source;
+
+    /** Offset of this tuple's first byte in source. */
+    private transient int sourceOffset;
+
+    /** Number of fields still to be decoded from source. */
+    private transient int undecoded;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -36,6 +53,25 @@ public class Tuple implements Serializable {
         }
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from the serialized
+     * tuple at the given offset of buf. buf must not change while any field
+     * is still undecoded.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param buf
+     *            the buffer holding the serialized tuple, e.g. a page image
+     * @param offset
+     *            index in buf of the first byte of the tuple
+     */
+    Tuple(TupleDesc td, ByteBuffer buf, int offset) {
+        this(td);
+        sourceOffset = offset;
+        undecoded = td.numFields();
+        source = buf;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -77,6 +113,16 @@ public class Tuple implements Serializable {
         if(i < 0 || i >= fields.size()){
             return ;
         }
+        if(source != null){
+            synchronized (this) {
+                boolean decoded = source != null && fields.get(i) == null && f != null;
+                fields.set(i, f);
+                if(decoded && --undecoded == 0){
+                    source = null;
+                }
+            }
+            return ;
+        }
         fields.set(i, f);
     }
 
@@ -91,7 +137,52 @@ public class Tuple implements Serializable {
         if(i < 0 || i >= fields.size()){
             return null;
         }
-        return fields.get(i);
+        // read source first: once it is seen null, every decoded field is visible
+        ByteBuffer src = source;
+        Field f = fields.get(i);
+        if(f == null && src != null){
+            f = decodeField(i);
+        }
+        return f;
+    }
+
+    private synchronized Field decodeField(int i) {
+        Field f = fields.get(i);
+        if(f != null || source == null){
+            return f;
+        }
+        int offset = sourceOffset;
+        for(int j = 0; j < i; ++ j){
+            offset += tupleDesc.getFieldType(j).getLen();
+        }
+        try {
+            f = tupleDesc.getFieldType(i).parse(source, offset);
+        } catch (ParseException e) {
+            throw new IllegalStateException("parsing error!", e);
+        }
+        fields.set(i, f);
+        if(--undecoded == 0){
+            source = null;
+        }
+        return f;
+    }
+
+    /**
+     * Decode every field that has not been decoded yet, so this tuple no
+     * longer refers to its source buffer.
+     */
+    void decodeAll() {
+        if(source == null){
+            return;
+        }
+        for(int i = 0; i < fields.size(); ++ i){
+            getField(i);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
     }
 
     /**
@@ -105,6 +196,7 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         // throw new UnsupportedOperationException("Implement this");
+        decodeAll();
         String result = "";
         for(int i = 0; i < fields.size(); ++ i){
             result += fields.get(i).toString();
@@ -122,6 +214,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        decodeAll();
         return fields.iterator();
     }
 
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * TuplePage is the interface a HeapFile uses to work with its pages, so the
+ * same file can be laid out either as fixed-size slots ({@link HeapPage}) or
+ * as variable-length records behind a slot directory ({@link SlottedPage}).
+ *
+ * @see HeapFile.PageFormat
+ */
+public interface TuplePage extends Page {
+
+    /** @return the id of this page */
+    public HeapPageId getId();
+
+    /**
+     * Returns true if t can be added to this page right now.
+     */
+    public boolean hasRoomFor(Tuple t);
+
+    /**
+     * Returns the number of further tuples this page can hold. For pages
+     * with variable-length records this counts tuples of the smallest
+     * possible size, so 0 means the page cannot take any tuple at all.
+     */
+    public int getNumEmptySlots();
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     * @throws DbException if the tuple does not fit
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *   this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * Returns an iterator over the tuples on this page projected onto the
+     * specified fields: field i of each returned tuple is field fields[i] of
+     * the stored tuple, and its RecordId is that of the stored tuple. Pages
+     * that store each field separately override this to decode only the
+     * requested fields.
+     *
+     * @param fields the indexes of the fields to return, in order
+     * @param projected the TupleDesc of the returned tuples
+     */
+    public default Iterator<Tuple> iterator(final int[] fields, final TupleDesc projected) {
+        final Iterator<Tuple> it = iterator();
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = it.next();
+                Tuple p = new Tuple(projected);
+                for (int i = 0; i < fields.length; i++) {
+                    p.setField(i, t.getField(fields[i]));
+                }
+                p.setRecordId(t.getRecordId());
+                return p;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * TwoQPolicy is the full 2Q algorithm of Johnson and Shasha. A page read
+ * into the pool first goes on a FIFO queue, A1in, which holds about a
+ * quarter of the pool; hits while it is there are not counted, since they
+ * are usually the same operation using the page again. A page evicted from
+ * A1in is remembered (by id only) on A1out. Only a page that is read in
+ * again while remembered on A1out is promoted to the main LRU queue, Am.
+ * Pages that a scan touches once therefore never displace pages in Am.
+ *
+ * @Threadsafe
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    /** Target number of pages on A1in. */
+    private final int kin;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final int kout;
+
+    /**
+     * @param numPages the number of pages the pool holds
+     */
+    public TwoQPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    private static PageId first(Set<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized PageId victim(Predicate<PageId> evictable) {
+        PageId pid = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            pid = first(a1in, evictable);
+        }
+        if (pid == null) {
+            pid = first(am, evictable);
+        }
+        if (pid == null) {
+            pid = first(a1in, evictable);
+        }
+        return pid;
+    }
+}
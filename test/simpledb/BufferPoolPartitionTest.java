@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+
+    /**
+     * A partitioned pool caches as many bytes as an unpartitioned one, and
+     * evicts across partitions to stay within them
+     */
+    @Test public void capacityIsShared() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        BufferPool bp = new BufferPool(16, 4);
+        assertEquals(4, bp.getNumPartitions());
+        assertTrue(f.numPages() > 16);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < f.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            assertTrue(bp.getCachedBytes() <= bp.getCapacityBytes());
+        }
+        assertEquals(bp.getCapacityBytes(), bp.getCachedBytes());
+        assertTrue(bp.holdsLock(tid, new HeapPageId(f.getId(), 0)));
+        bp.transactionComplete(tid);
+        assertTrue(!bp.holdsLock(tid, new HeapPageId(f.getId(), 0)));
+    }
+
+    /**
+     * Threads reading pages in different partitions at once all get their
+     * pages, and every request is counted exactly once
+     */
+    @Test public void concurrentReaders() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        BufferPool bp = Database.getBufferPool();
+        assertTrue(bp.getNumPartitions() > 1);
+        int threads = 4, reads = 500;
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers.add(new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    TransactionId tid = new TransactionId();
+                    for (int i = 0; i < reads; i++) {
+                        HeapPageId pid = new HeapPageId(f.getId(), r.nextInt(f.numPages()));
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        if (i % 20 == 19) {
+                            bp.transactionComplete(tid);
+                            tid = new TransactionId();
+                        }
+                    }
+                    bp.transactionComplete(tid);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertEquals(threads * reads, bp.getHits() + bp.getMisses());
+        assertTrue(bp.getCachedBytes() <= bp.getCapacityBytes());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
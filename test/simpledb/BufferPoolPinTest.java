@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+
+    private HeapFile file() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        return SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+    }
+
+    /**
+     * A pinned page stays cached while many other pages pass through the
+     * pool, and can be evicted once unpinned
+     */
+    @Test public void pinnedPagesStay() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.setPrefetchWindow(0);
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(f.getId(), 0);
+        Page pinned = bp.pinPage(tid, first, Permissions.READ_ONLY, false);
+        bp.pinPage(tid, first, Permissions.READ_ONLY, false);
+        assertEquals(2, bp.getPinCount(first));
+
+        for (int i = 1; i < f.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertTrue(pinned == bp.getPage(tid, first, Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, first);
+        bp.unpinPage(tid, first);
+        assertEquals(0, bp.getPinCount(first));
+        for (int i = 1; i < f.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        long misses = bp.getMisses();
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(misses + 1, bp.getMisses());
+        bp.transactionComplete(tid);
+        assertTrue(bp.getPinLeaks().isEmpty());
+    }
+
+    /**
+     * A pool whose every page is pinned cannot make room for another
+     */
+    @Test public void allPinned() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setPrefetchWindow(0);
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY, false);
+        bp.pinPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY, false);
+        try {
+            bp.getPage(tid, new HeapPageId(f.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.unpinPage(new TransactionId(), new HeapPageId(f.getId(), 0));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 0));
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 1));
+        bp.getPage(tid, new HeapPageId(f.getId(), 2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A scan pins only the page it is on and unpins it on close; one left
+     * open when its transaction commits is reported as a leak, with where
+     * the page was pinned
+     */
+    @Test public void leakDetector() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.getBufferPool();
+        bp.setPinTracking(true);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int pinned = 0;
+        for (int i = 0; i < 500; i++) {
+            it.next();
+        }
+        for (int i = 0; i < f.numPages(); i++)
+            pinned += bp.getPinCount(new HeapPageId(f.getId(), i));
+        assertEquals(1, pinned);
+        it.close();
+        assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), 0)));
+        bp.transactionComplete(tid);
+        assertTrue(bp.getPinLeaks().isEmpty());
+
+        tid = new TransactionId();
+        it = f.iterator(tid);
+        it.open();
+        it.next();
+        bp.transactionComplete(tid);
+        List<String> leaks = bp.getPinLeaks();
+        assertEquals(1, leaks.size());
+        assertTrue(leaks.get(0).contains("HeapFile$FileIterator"));
+        assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), 0)));
+
+        // the leak was meant; leave a clean pool for the check after each test
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
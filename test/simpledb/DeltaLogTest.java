@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DeltaLogTest extends SimpleDbTestBase {
+
+    private static long logUpdate(HeapFile f, boolean delta) throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setDeltaRecords(delta);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        long start = log.getCurrentLsn();
+        log.logWrite(tid, page.getBeforeImage(), page);
+        long bytes = log.getCurrentLsn() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        return bytes;
+    }
+
+    /**
+     * Inserting a tuple is logged as a delta a fraction of the size of the
+     * full images
+     */
+    @Test public void deltaIsSmaller() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<ArrayList<Integer>>());
+        long full = logUpdate(f, false);
+        long delta = logUpdate(f, true);
+        assertTrue(full > 2 * BufferPool.getPageSize());
+        assertTrue(delta * 10 < full);
+    }
+
+    /**
+     * A delta read back from its bytes redoes and undoes the update it was
+     * made from
+     */
+    @Test public void applyDelta() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<ArrayList<Integer>>());
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+        page.deleteTuple(page.iterator().next());
+        byte[] before = page.getBeforeImage().getPageData();
+        byte[] after = page.getPageData();
+
+        LogFile.PageDelta delta = LogFile.PageDelta.of(page, before, after);
+        assertNotNull(delta);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        delta = LogFile.PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(page.getId(), delta.page.id());
+
+        byte[] image = before.clone();
+        delta.apply(image, true);
+        assertArrayEquals(after, image);
+        delta.apply(image, false);
+        assertArrayEquals(before, image);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A checkpoint that truncates the log copies the delta records of live
+     * transactions whole, so that every record keeps its LSN
+     */
+    @Test public void truncationKeepsDeltas() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<ArrayList<Integer>>());
+        LogFile log = Database.getLogFile();
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        log.logCommit(done);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 5, 6 }));
+        log.logWrite(tid, page.getBeforeImage(), page);
+        Database.getBufferPool().flushAllPages();
+
+        // type, tid, one live transaction and its first record, begin
+        // offset, no dirty pages, start offset
+        long checkpointBytes = 4 + 8 + 4 + 16 + 8 + 4 + 8;
+        long before = log.getCurrentLsn();
+        log.logCheckpoint();
+        assertEquals(before + checkpointBytes, log.getCurrentLsn());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeltaLogTest.class);
+    }
+}
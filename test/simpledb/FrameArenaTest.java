@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+
+    /**
+     * Frames are direct, distinct and handed out once until released
+     */
+    @Test public void frames() {
+        FrameArena arena = new FrameArena(3, 64);
+        ByteBuffer a = arena.acquire(), b = arena.acquire(), c = arena.acquire();
+        assertNull(arena.acquire());
+        assertTrue(a.isDirect());
+        assertEquals(64, a.remaining());
+        a.put(0, (byte) 1);
+        assertEquals(0, b.get(0));
+        assertEquals(0, c.get(0));
+        arena.release(b);
+        assertEquals(1, arena.getFreeFrames());
+        assertTrue(b == arena.acquire());
+    }
+
+    /**
+     * An off-heap pool reads pages into its frames, returns the same tuples
+     * as reading from the file, and reuses the frames of evicted pages
+     */
+    @Test public void offHeapPool() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+        BufferPool bp = new BufferPool(8, 1, true);
+        FrameArena arena = bp.getFrameArena();
+        assertEquals(8, arena.getNumFrames());
+
+        TransactionId tid = new TransactionId();
+        int row = 0;
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            assertTrue(page.isLent());
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                assertEquals(tuples.get(row++), SystemTestUtil.tupleToList(it.next()));
+            assertEquals(8 - Math.min(i + 1, 8), arena.getFreeFrames());
+        }
+        assertEquals(tuples.size(), row);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The frame of a page discarded while pinned is only reused once the
+     * page is unpinned
+     */
+    @Test public void pinnedFrameOutlivesDiscard() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+        BufferPool bp = new BufferPool(4, 1, true);
+        FrameArena arena = bp.getFrameArena();
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        bp.pinPage(tid, pid, Permissions.READ_ONLY, false);
+        assertEquals(3, arena.getFreeFrames());
+        bp.discardPage(pid);
+        assertEquals(3, arena.getFreeFrames());
+        bp.unpinPage(tid, pid);
+        assertEquals(4, arena.getFreeFrames());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * An off-heap pool whose next fetch of a chosen page is followed, before
+     * the caller gets to modify the page, by another transaction's misses
+     * on every page of another file
+     */
+    private static class EvictingPool extends BufferPool {
+        private final HeapFile other;
+        private PageId target;
+
+        EvictingPool(int numPages, HeapFile other) {
+            super(numPages, 1, true);
+            this.other = other;
+        }
+
+        private Page evictOthers(Page page) throws TransactionAbortedException, DbException {
+            if (page.getId().equals(target)) {
+                target = null;
+                TransactionId reader = new TransactionId();
+                for (int i = 0; i < other.numPages(); i++) {
+                    getPage(reader, new HeapPageId(other.getId(), i), Permissions.READ_ONLY);
+                }
+                try {
+                    transactionComplete(reader);
+                } catch (java.io.IOException e) {
+                    throw new DbException(e.getMessage());
+                }
+            }
+            return page;
+        }
+
+        @Override
+        public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+                throws TransactionAbortedException, DbException {
+            return evictOthers(super.getPage(tid, pid, perm));
+        }
+
+        @Override
+        public Page pinPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+                throws TransactionAbortedException, DbException {
+            return evictOthers(super.pinPage(tid, pid, perm, sequential));
+        }
+    }
+
+    /**
+     * A page fetched for an insert stays in its frame while other pages
+     * are read, so the insert does not write into a frame lent to another
+     * page
+     */
+    @Test public void insertKeepsFrame() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 5000, null, new ArrayList<ArrayList<Integer>>());
+        EvictingPool bp = new EvictingPool(4, other);
+        Database.resetBufferPool(bp);
+
+        TransactionId writer = new TransactionId();
+        bp.target = new HeapPageId(f.getId(), 0);
+        Tuple t = Utility.getHeapTuple(new int[] { -1, -1 });
+        bp.insertTuple(writer, f.getId(), t);
+        assertNull(bp.target);
+        bp.transactionComplete(writer);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tuples.add(SystemTestUtil.tupleToList(t));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File f;
+    private FreeSpaceMap fsm;
+
+    @Before public void createMap() throws Exception {
+        f = File.createTempFile("fsm", ".dat");
+        f.deleteOnExit();
+        fsm = new FreeSpaceMap(f);
+        fsm.getFile().deleteOnExit();
+    }
+
+    @After public void closeMap() throws Exception {
+        fsm.close();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.nextPageWithRoom()
+     */
+    @Test public void nextPageWithRoom() throws Exception {
+        assertEquals(0, fsm.nextPageWithRoom(0, 4));
+        fsm.markFull(0, 4);
+        fsm.markFull(1, 4);
+        fsm.markFull(3, 4);
+        assertEquals(2, fsm.nextPageWithRoom(0, 4));
+        assertEquals(4, fsm.nextPageWithRoom(3, 4));
+
+        fsm.markHasRoom(1, 4);
+        assertEquals(1, fsm.nextPageWithRoom(0, 4));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap persistence across instances
+     */
+    @Test public void persisted() throws Exception {
+        fsm.markFull(0, 3);
+        fsm.markFull(2, 3);
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f);
+        assertEquals(1, reopened.nextPageWithRoom(0, 3));
+        assertEquals(3, reopened.nextPageWithRoom(2, 3));
+        reopened.close();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap: a map covering more pages than the heap
+     * file has is stale and ignored
+     */
+    @Test public void staleMapIgnored() throws Exception {
+        fsm.markFull(0, 3);
+        fsm.markFull(2, 3);
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f);
+        assertEquals(0, reopened.nextPageWithRoom(0, 1));
+        reopened.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    /**
+     * A force that finds everything appended already on disk does not
+     * force again
+     */
+    @Test public void forceSkipsDurableLog() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        long forces = log.getForceCount();
+        log.force();
+        log.force();
+        assertEquals(forces, log.getForceCount());
+    }
+
+    /**
+     * Concurrent committers share forces, and every commit returns only
+     * once its record is covered by one
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final LogFile log = Database.getLogFile();
+        final int threads = 16;
+        final int commits = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Exception> errors = new ArrayList<Exception>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < commits; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+        long forces = log.getForceCount();
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * commits, log.getCommitCount());
+        assertTrue(log.getForceCount() - forces < threads * commits);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -43,6 +43,39 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() after a delete: the free space map
+     * sends the insert back to the page that has room
+     */
+    @Test public void addTupleAfterDelete() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 1008; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(first.getRecordId(), t.getRecordId());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() after an abort: pages filled by
+     * the aborted transaction get their room back
+     */
+    @Test public void addTupleAfterAbort() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(t.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -85,6 +85,21 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getNumEmptySlots() when the slots do not fill
+     * the last header byte
+     */
+    @Test public void addTupleOddSlotCount() throws Exception {
+        HeapPageId wide = new HeapPageId(-2, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-2, Utility.getTupleDesc(8)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(wide, HeapPage.createEmptyPageData());
+        int free = page.getNumEmptySlots();
+        assertTrue(free % 8 != 0);
+        for (int i = 0; i < free; ++i)
+            page.insertTuple(Utility.getHeapTuple(i, 8));
+        assertEquals(0, page.getNumEmptySlots());
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
@@ -0,0 +1,232 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager(4);
+        lm.setTimeoutMillis(10000);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Thread that acquires a lock and records when it got it. */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        final List<TransactionId> order;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean aborted;
+
+        Acquirer(TransactionId tid, PageId pid, Permissions perm, List<TransactionId> order) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            this.order = order;
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, perm);
+                order.add(tid);
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+            done.countDown();
+        }
+
+        boolean finished(long millis) throws InterruptedException {
+            return done.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Acquirer start(TransactionId tid, Permissions perm, List<TransactionId> order)
+            throws InterruptedException {
+        return start(tid, p0, perm, order);
+    }
+
+    private Acquirer start(TransactionId tid, PageId pid, Permissions perm,
+            List<TransactionId> order) throws InterruptedException {
+        Acquirer a = new Acquirer(tid, pid, perm, order);
+        a.start();
+        // let it reach the queue before the next one
+        a.finished(50);
+        return a;
+    }
+
+    /**
+     * Waiters are granted in arrival order, and a shared request does not
+     * overtake a waiting exclusive one
+     */
+    @Test public void fifo() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId holder = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_ONLY);
+        TransactionId w = new TransactionId(), r1 = new TransactionId(), r2 = new TransactionId();
+        Acquirer aw = start(w, Permissions.READ_WRITE, order);
+        Acquirer a1 = start(r1, Permissions.READ_ONLY, order);
+        Acquirer a2 = start(r2, Permissions.READ_ONLY, order);
+        assertTrue(order.isEmpty());
+
+        lm.releaseAll(holder);
+        assertTrue(aw.finished(1000));
+        assertFalse(a1.finished(50));
+        lm.releaseAll(w);
+        assertTrue(a1.finished(1000));
+        assertTrue(a2.finished(1000));
+        assertEquals(w, order.get(0));
+        assertTrue(lm.holdsLock(r1, p0) && lm.holdsLock(r2, p0));
+    }
+
+    /**
+     * An upgrade goes ahead of other waiters, and of two holders waiting to
+     * upgrade the younger is aborted
+     */
+    @Test public void upgrade() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), w = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        Acquirer aw = start(w, Permissions.READ_WRITE, order);
+        Acquirer up2 = start(t2, Permissions.READ_WRITE, order);
+        assertFalse(up2.finished(0));
+
+        // t1 is older: t2 loses its upgrade and gives up its shared lock
+        Acquirer up1 = start(t1, Permissions.READ_WRITE, order);
+        assertTrue(up2.finished(1000));
+        assertTrue(up2.aborted);
+        lm.releaseAll(t2);
+        assertTrue(up1.finished(1000));
+        assertFalse(up1.aborted);
+        assertTrue(lm.isExclusivelyLocked(p0));
+        assertFalse(aw.finished(50));
+
+        lm.releaseAll(t1);
+        assertTrue(aw.finished(1000));
+        assertEquals(t1, order.get(0));
+        assertEquals(w, order.get(1));
+    }
+
+    /**
+     * A waiter wakes as soon as the lock is released, and gives up after
+     * the lock timeout
+     */
+    @Test public void wakeupAndTimeout() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId holder = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_WRITE);
+        Acquirer a = start(new TransactionId(), Permissions.READ_WRITE, order);
+        // far longer than the old 50ms limit on waiting
+        assertFalse(a.finished(200));
+        lm.release(holder, p0);
+        assertTrue(a.finished(1000));
+        assertFalse(a.aborted);
+        assertFalse(lm.holdsLock(holder, p0));
+
+        lm.setTimeoutMillis(100);
+        Acquirer b = start(new TransactionId(), Permissions.READ_ONLY, order);
+        assertTrue(b.finished(1000));
+        assertTrue(b.aborted);
+    }
+
+    /**
+     * Two transactions each waiting for the other's lock are found deadlocked
+     * at once, long before the lock timeout, and the younger is aborted
+     */
+    @Test public void deadlock() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        Acquirer a1 = start(t1, p1, Permissions.READ_WRITE, order);
+        assertFalse(a1.finished(0));
+
+        Acquirer a2 = start(t2, p0, Permissions.READ_WRITE, order);
+        assertTrue(a2.finished(1000));
+        assertTrue(a2.aborted);
+        assertFalse(a1.finished(50));
+        lm.releaseAll(t2);
+        assertTrue(a1.finished(1000));
+        assertFalse(a1.aborted);
+
+        assertEquals(1, lm.getDeadlocks());
+        assertEquals(1, lm.getDeadlockAborts());
+        assertEquals(0, lm.getTimeoutAborts());
+        assertEquals(2, lm.getWaits());
+        assertEquals(4, lm.getRequests());
+        assertEquals(0.25, lm.getAbortRate(), 1e-9);
+        assertTrue(lm.getMaxDetectionNanos() > 0);
+        assertTrue(lm.getDetectionNanos() >= lm.getMaxDetectionNanos());
+    }
+
+    /**
+     * A waiter closing two cycles at once is not left deadlocked when the
+     * victim of the longer one is not on the shorter one
+     */
+    @Test public void nestedCycles() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId t1 = new TransactionId(), t3 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t3, p1, Permissions.READ_WRITE);
+        Acquirer a2 = start(t2, p0, Permissions.READ_WRITE, order);
+        Acquirer a1 = start(t1, p1, Permissions.READ_WRITE, order);
+
+        // t3 waits for t1 and t2, closing t3-t1-t3 and t3-t2-t1-t3
+        Acquirer a3 = start(t3, p0, Permissions.READ_WRITE, order);
+        assertTrue(a3.finished(1000));
+        assertTrue(a3.aborted);
+        lm.releaseAll(t3);
+        assertTrue(a1.finished(1000));
+        assertFalse(a1.aborted);
+        assertTrue(lm.holdsLock(t1, p1));
+        assertEquals(0, lm.getTimeoutAborts());
+    }
+
+    /**
+     * With LEAST_WORK the transaction holding the fewest locks is the victim,
+     * even when it is the older one, and it is woken to abort
+     */
+    @Test public void leastWork() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.setVictimPolicy(LockManager.VictimPolicy.LEAST_WORK);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        lm.acquire(t2, new HeapPageId(1, 2), Permissions.READ_WRITE);
+        Acquirer a1 = start(t1, p1, Permissions.READ_WRITE, order);
+
+        Acquirer a2 = start(t2, p0, Permissions.READ_WRITE, order);
+        assertTrue(a1.finished(1000));
+        assertTrue(a1.aborted);
+        lm.releaseAll(t1);
+        assertTrue(a2.finished(1000));
+        assertFalse(a2.aborted);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertEquals(1, lm.getDeadlockAborts());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    /**
+     * Records are buffered, and written to the file in one write when the
+     * log is forced
+     */
+    @Test public void recordsAreBuffered() throws Exception {
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 100; i++) {
+            log.logXactionBegin(new TransactionId());
+        }
+        assertEquals(0, log.getFileWrites());
+        log.force();
+        assertEquals(1, log.getFileWrites());
+        log.force();
+        assertEquals(1, log.getFileWrites());
+    }
+
+    /**
+     * An update record gives its page an LSN, later records get larger ones,
+     * and forcing the log through a page's record leaves later records
+     * buffered
+     */
+    @Test public void pageLsn() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, new ArrayList<ArrayList<Integer>>());
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        Page page = Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        assertEquals(0, page.getLSN());
+
+        long before = log.getCurrentLsn();
+        log.logWrite(tid, page.getBeforeImage(), page);
+        long first = page.getLSN();
+        assertEquals(before, first);
+        assertTrue(log.getCurrentLsn() > first);
+        log.forceTo(first);
+        long writes = log.getFileWrites();
+
+        log.logXactionBegin(new TransactionId());
+        log.forceTo(first);
+        assertEquals(writes, log.getFileWrites());
+        log.logWrite(tid, page.getBeforeImage(), page);
+        assertTrue(page.getLSN() > first);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A checkpoint that truncates the log does not make LSNs go back
+     */
+    @Test public void lsnsSurviveTruncation() throws Exception {
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 10; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        long before = log.getCurrentLsn();
+        log.logCheckpoint();
+        assertTrue(log.getCurrentLsn() > before);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertTrue(log.getCurrentLsn() > before);
+        log.logCommit(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MemoryBudgetTest extends SimpleDbTestBase {
+
+    private static final int PAGE = BufferPool.getPageSize();
+
+    private static int[] randomTuples(int n, int width) {
+        Random r = new Random(7);
+        int[] data = new int[n * width];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextInt(n);
+        }
+        return data;
+    }
+
+    private static int scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * The pool reserves its capacity, and a new pool takes the place of the
+     * old one in the budget
+     */
+    @Test public void poolReservesCapacity() {
+        MemoryBudget budget = Database.getMemoryBudget();
+        BufferPool bp = Database.resetBufferPool(40);
+        assertEquals(40L * PAGE, budget.getUsed(MemoryBudget.BUFFER_POOL));
+        assertEquals(bp.getCapacityBytes(), budget.getUsed());
+        Database.resetBufferPool(10);
+        assertEquals(10L * PAGE, budget.getUsed());
+        assertEquals(10L * PAGE, (long) budget.getUsage().get(MemoryBudget.BUFFER_POOL));
+    }
+
+    /**
+     * An operator short of memory takes pages from the pool, no further
+     * than a quarter of its size, and the pool takes them back once they
+     * are released
+     */
+    @Test public void poolGivesBackPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 30000, null, new ArrayList<ArrayList<Integer>>());
+        MemoryBudget budget = Database.getMemoryBudget();
+        BufferPool bp = Database.resetBufferPool(40);
+        budget.setLimit(budget.getUsed());
+        scan(f);
+
+        assertTrue(budget.tryReserve("test", 10 * PAGE));
+        assertEquals(30, bp.getNumPages());
+        assertTrue(bp.getCachedBytes() <= bp.getCapacityBytes());
+        assertFalse(budget.tryReserve("test", 25 * PAGE));
+        assertEquals(30, bp.getNumPages());
+        assertEquals(1, budget.getRefusals());
+        assertEquals(10L * PAGE, budget.getReclaimed());
+
+        budget.release("test", 10 * PAGE);
+        assertEquals(30000, scan(f));
+        assertEquals(40, bp.getNumPages());
+        assertEquals(budget.getLimit(), budget.getUsed());
+    }
+
+    /**
+     * Resizing keeps the cached pages that still fit, and a pool grows only
+     * as far as the budget has memory free
+     */
+    @Test public void resize() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 30000, null, new ArrayList<ArrayList<Integer>>());
+        MemoryBudget budget = Database.getMemoryBudget();
+        BufferPool bp = Database.resetBufferPool(20);
+        scan(f);
+        bp.resize(10);
+        assertEquals(10L * PAGE, bp.getCapacityBytes());
+        assertEquals(10L * PAGE, bp.getCachedBytes());
+        assertEquals(10L * PAGE, budget.getUsed());
+
+        budget.setLimit(15L * PAGE);
+        bp.resize(20);
+        assertEquals(15, bp.getNumPages());
+        assertEquals(20, bp.getTargetPages());
+        budget.setLimit(20L * PAGE);
+        assertEquals(30000, scan(f));
+        assertEquals(20, bp.getNumPages());
+    }
+
+    /**
+     * OrderBy spills sorted runs when the budget refuses it memory, and
+     * still returns every tuple in order, also after a rewind
+     */
+    @Test public void orderBySpills() throws Exception {
+        int n = 5000;
+        MemoryBudget budget = Database.getMemoryBudget();
+        budget.setLimit(budget.getUsed() + 100 * 1024);
+        OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, randomTuples(n, 2)));
+        op.open();
+        assertTrue(budget.getRefusals() > 0);
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            int last = Integer.MIN_VALUE;
+            while (op.hasNext()) {
+                int v = ((IntField) op.next().getField(0)).getValue();
+                assertTrue(v >= last);
+                last = v;
+                count++;
+            }
+            assertEquals(n, count);
+            op.rewind();
+        }
+        op.close();
+        assertEquals(0, budget.getUsed("OrderBy"));
+    }
+
+    /**
+     * OrderBy opened again without a close starts over: it returns each
+     * tuple once, whether or not it spilled, and keeps one reservation
+     */
+    @Test public void orderByReopens() throws Exception {
+        int n = 5000;
+        MemoryBudget budget = Database.getMemoryBudget();
+        OrderBy roomy = new OrderBy(0, true, TestUtil.createTupleList(2, randomTuples(n, 2)));
+        roomy.open();
+        long used = budget.getUsed("OrderBy");
+        roomy.open();
+        assertEquals(used, budget.getUsed("OrderBy"));
+        assertEquals(n, drain(roomy));
+        roomy.close();
+        assertEquals(0, budget.getUsed("OrderBy"));
+
+        budget.setLimit(budget.getUsed() + 100 * 1024);
+        OrderBy tight = new OrderBy(0, true, TestUtil.createTupleList(2, randomTuples(n, 2)));
+        tight.open();
+        tight.open();
+        assertTrue(budget.getRefusals() > 0);
+        assertEquals(n, drain(tight));
+        tight.close();
+        assertEquals(0, budget.getUsed("OrderBy"));
+    }
+
+    private static int drain(OpIterator op) throws Exception {
+        int n = 0;
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * HashEquiJoin loads its hash table in as many chunks as the budget
+     * makes it, and finds the same matches as with memory to spare
+     */
+    @Test public void hashJoinInChunks() throws Exception {
+        int[] left = randomTuples(5000, 2);
+        int[] right = randomTuples(500, 2);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        MemoryBudget budget = Database.getMemoryBudget();
+
+        HashEquiJoin roomy = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+                TestUtil.createTupleList(2, right));
+        roomy.open();
+        int expected = 0;
+        while (roomy.hasNext()) {
+            roomy.next();
+            expected++;
+        }
+        roomy.close();
+        assertEquals(0, budget.getRefusals());
+
+        budget.setLimit(budget.getUsed() + 100 * 1024);
+        HashEquiJoin tight = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+                TestUtil.createTupleList(2, right));
+        tight.open();
+        int actual = 0;
+        while (tight.hasNext()) {
+            tight.next();
+            actual++;
+        }
+        tight.close();
+        assertTrue(budget.getRefusals() > 0);
+        assertEquals(expected, actual);
+        assertEquals(0, budget.getUsed("HashEquiJoin"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MemoryBudgetTest.class);
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageChannelTest extends SimpleDbTestBase {
+
+    private File f;
+    private PageChannel channel;
+
+    @Before public void createChannel() throws Exception {
+        f = File.createTempFile("pagechannel", ".dat");
+        f.deleteOnExit();
+        channel = new PageChannel(f);
+    }
+
+    @After public void closeChannel() throws Exception {
+        channel.close();
+    }
+
+    /**
+     * Unit test for PageChannel.write() and PageChannel.read() at offsets
+     */
+    @Test public void writeThenRead() throws Exception {
+        byte[] a = new byte[64];
+        byte[] b = new byte[64];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = (byte) i;
+            b[i] = (byte) (a.length - i);
+        }
+        channel.write(64, b);
+        channel.write(0, a);
+        assertEquals(128, channel.size());
+
+        byte[] buf = new byte[64];
+        assertEquals(64, channel.read(64, buf));
+        assertArrayEquals(b, buf);
+        assertEquals(64, channel.read(0, buf));
+        assertArrayEquals(a, buf);
+    }
+
+    /**
+     * Unit test for PageChannel.read() at and past end of file
+     */
+    @Test public void readPastEnd() throws Exception {
+        channel.write(0, new byte[10]);
+        assertEquals(10, channel.read(0, new byte[64]));
+        assertEquals(-1, channel.read(10, new byte[64]));
+    }
+
+    /**
+     * Unit test for PageChannel.map()
+     */
+    @Test public void map() throws Exception {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        channel.write(0, data);
+
+        ByteBuffer view = channel.map(128, 64);
+        assertTrue(view.isReadOnly());
+        assertEquals(64, view.remaining());
+        assertEquals((byte) 128, view.get(0));
+        assertEquals((byte) 191, view.get(63));
+
+        // the file grows; the segment is remapped to cover the new bytes
+        channel.write(256, data);
+        view = channel.map(256 + 64, 16);
+        assertEquals((byte) 64, view.get(0));
+    }
+
+    /**
+     * Unit test for PageChannel.map() past the end of the file
+     */
+    @Test(expected = IllegalArgumentException.class) public void mapPastEnd() throws Exception {
+        channel.write(0, new byte[16]);
+        channel.map(8, 16);
+    }
+
+    /**
+     * Unit test for PageChannel.close(): the channel reopens on demand
+     */
+    @Test public void reopenAfterClose() throws Exception {
+        channel.write(0, new byte[] {1, 2, 3});
+        channel.close();
+        byte[] buf = new byte[3];
+        assertEquals(3, channel.read(0, buf));
+        assertArrayEquals(new byte[] {1, 2, 3}, buf);
+    }
+
+    /**
+     * Unit test for PageChannel.read() of a file that cannot be written: it
+     * is opened read-only
+     */
+    @Test public void readReadOnlyFile() throws Exception {
+        channel.write(0, new byte[] {1, 2, 3});
+        channel.close();
+        assertTrue(f.setWritable(false));
+        try {
+            byte[] buf = new byte[3];
+            assertEquals(3, channel.read(0, buf));
+            assertArrayEquals(new byte[] {1, 2, 3}, buf);
+        } finally {
+            f.setWritable(true);
+        }
+    }
+
+    /**
+     * Unit test for PageChannel.read() of a missing file: it is not created
+     */
+    @Test public void readMissingFile() throws Exception {
+        assertTrue(f.delete());
+        try {
+            channel.read(0, new byte[3]);
+            fail("expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertFalse(f.exists());
+    }
+
+    /**
+     * Unit test for PageChannel.read() after another reader was interrupted,
+     * closing the shared channel under it
+     */
+    @Test public void readAfterInterruptedReader() throws Exception {
+        channel.write(0, new byte[] {1, 2, 3});
+        final Exception[] thrown = new Exception[1];
+        Thread t = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                channel.read(0, new byte[3]);
+            } catch (Exception e) {
+                thrown[0] = e;
+            }
+        });
+        t.start();
+        t.join();
+        assertTrue(thrown[0] instanceof ClosedByInterruptException);
+
+        byte[] buf = new byte[3];
+        assertEquals(3, channel.read(0, buf));
+        assertArrayEquals(new byte[] {1, 2, 3}, buf);
+        channel.write(0, new byte[] {4});
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChannelTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private HeapFile file() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        return SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    private static void insert(BufferPool bp, TransactionId tid, HeapFile f, int tuples) throws Exception {
+        for (int i = 0; i < tuples; i++) {
+            bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    /**
+     * A commit leaves its pages unwritten, and the cleaner writes them
+     */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.setPageCleaner(true);
+        TransactionId tid = new TransactionId();
+        insert(bp, tid, f, 1000);
+        bp.transactionComplete(tid);
+        BufferPool.awaitCleaning();
+        assertEquals(0, bp.getUnwrittenPages());
+        assertTrue(bp.getCleanerWrites() > 0);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(1010, count(f));
+    }
+
+    /**
+     * Aborting a transaction that changed a committed page the cleaner has
+     * not written keeps the committed changes
+     */
+    @Test public void abortKeepsCommittedImage() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.setPageCleaner(true);
+        TransactionId t1 = new TransactionId();
+        insert(bp, t1, f, 5);
+        bp.transactionComplete(t1);
+        TransactionId t2 = new TransactionId();
+        insert(bp, t2, f, 5);
+        bp.transactionComplete(t2, false);
+        assertEquals(15, count(f));
+
+        BufferPool.awaitCleaning();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(15, count(f));
+    }
+
+    /**
+     * A pool much smaller than what its transactions commit always finds a
+     * page to evict, and loses none of the committed tuples
+     */
+    @Test public void smallPool() throws Exception {
+        HeapFile f = file();
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.setPageCleaner(true);
+        for (int i = 0; i < 20; i++) {
+            TransactionId tid = new TransactionId();
+            insert(bp, tid, f, 600);
+            bp.transactionComplete(tid);
+        }
+        assertEquals(0, bp.getEvictionFailures());
+        BufferPool.awaitCleaning();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(10 + 20 * 600, count(f));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCompressorTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+    private int numSlots;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "a", "b", "c" });
+        numSlots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("s" + (i % 5), Type.STRING_LEN));
+        t.setField(2, new IntField(i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE));
+        return t;
+    }
+
+    /**
+     * A full page and a page with holes come back byte for byte, and are
+     * much smaller compressed
+     */
+    @Test public void roundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < numSlots; i++)
+            page.insertTuple(tuple(i));
+
+        byte[] image = page.getPageData();
+        byte[] blob = PageCompressor.compress(image, td);
+        assertArrayEquals(image, PageCompressor.decompress(blob, td, image.length));
+        assertTrue(blob.length * 4 < image.length);
+
+        for (int i = 0; i < numSlots; i += 3) {
+            Tuple t = tuple(i);
+            t.setRecordId(new RecordId(pid, i));
+            page.deleteTuple(t);
+        }
+        image = page.getPageData();
+        blob = PageCompressor.compress(image, td);
+        assertArrayEquals(image, PageCompressor.decompress(blob, td, image.length));
+
+        image = HeapPage.createEmptyPageData();
+        assertArrayEquals(image, PageCompressor.decompress(PageCompressor.compress(image, td),
+                td, image.length));
+    }
+
+    /**
+     * Sorted int columns use delta encoding, others frame of reference and
+     * dictionaries
+     */
+    @Test public void encodings() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < numSlots; i++)
+            page.insertTuple(tuple(1000000 + i * 1000));
+        byte[] blob = PageCompressor.compress(page.getPageData(), td);
+        int header = (numSlots + 7) / 8;
+        assertEquals(PageCompressor.DELTA, blob[header]);
+
+        page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        // a permutation of 0 .. 28
+        assertEquals(29, numSlots);
+        for (int i = 0; i < numSlots; i++)
+            page.insertTuple(tuple((i * 7) % numSlots));
+        blob = PageCompressor.compress(page.getPageData(), td);
+        assertEquals(PageCompressor.FRAME_OF_REFERENCE, blob[header]);
+        // 4 + 1 bytes of frame, 29 values of 5 bits
+        assertEquals(PageCompressor.DICTIONARY, blob[header + 1 + 5 + 19]);
+    }
+
+    /**
+     * A COMPRESSED HeapFile takes inserts, and its pages survive being
+     * flushed and read back through a new HeapFile
+     */
+    @Test public void compressedFile() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".pmap").deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, false, HeapFile.PageFormat.COMPRESSED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int rows = 1000;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        int pages = hf.numPages();
+        assertTrue(pages > 1);
+        assertTrue(f.length() * 4 < (long) pages * BufferPool.getPageSize());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.close();
+        HeapFile reopened = new HeapFile(f, td, false, HeapFile.PageFormat.COMPRESSED);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(pages, reopened.numPages());
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int i = 0;
+        while (it.hasNext()) {
+            assertTrue(TestUtil.compareTuples(tuple(i), it.next()));
+            i++;
+        }
+        it.close();
+        assertEquals(rows, i);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * HeapFileEncoder.compress converts a HeapFileEncoder-generated file
+     */
+    @Test public void convertEncodedFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File in = SystemTestUtil.createRandomHeapFileUnopened(3, 5000, 1000, null, tuples);
+        File out = File.createTempFile("compressed", ".dat");
+        out.deleteOnExit();
+        new File(out.getPath() + ".pmap").deleteOnExit();
+        TupleDesc desc = Utility.getTupleDesc(3);
+        HeapFileEncoder.compress(in, out, BufferPool.getPageSize(), desc);
+
+        HeapFile hf = new HeapFile(out, desc, false, HeapFile.PageFormat.COMPRESSED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(in.length() / BufferPool.getPageSize(), hf.numPages());
+        assertTrue(hf.storedBytes() * 2 < in.length());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCompressorTest.class);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageSizeTest extends SimpleDbTestBase {
+
+    private static final int BIG = 4 * 4096;
+
+    private HeapFile bigFile(int rows, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(-i);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("big", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BIG, 2);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), false, HeapFile.PageFormat.FIXED, BIG);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * A HeapFile reads pages of its own size, independently of the default
+     */
+    @Test public void readLargePages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = bigFile(10000, tuples);
+        assertEquals(BIG, hf.getPageSize());
+        int perPage = BIG * 8 / (8 * 8 + 1);
+        assertEquals((10000 + perPage - 1) / perPage, hf.numPages());
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(0, page.getNumEmptySlots());
+        assertEquals(BIG, page.getPageData().length);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * The buffer pool charges each page the page size of its file
+     */
+    @Test public void bufferPoolAccounting() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = bigFile(10000, tuples);
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.setPrefetchWindow(0);
+        assertEquals(8 * BufferPool.getPageSize(), bp.getCapacityBytes());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+            assertTrue(bp.getCachedBytes() <= bp.getCapacityBytes());
+        }
+        it.close();
+        assertEquals(10000, n);
+        // two 16KB pages fill a pool of eight 4KB pages
+        assertEquals(2 * BIG, bp.getCachedBytes());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Inserts append pages of the file's size
+     */
+    @Test public void insertLargePages() throws Exception {
+        File f = File.createTempFile("big", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), false, HeapFile.PageFormat.FIXED, BIG);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, hf.numPages());
+        assertEquals(BIG, f.length());
+    }
+
+    /**
+     * The pagesize option of a schema line sets the table's page size
+     */
+    @Test public void loadSchemaPageSize() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        String name = "t" + SystemTestUtil.getUUID().replace("-", "");
+        PrintWriter pw = new PrintWriter(schema);
+        pw.println(name + " (a int, b int) pagesize=" + BIG);
+        pw.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        assertEquals(BIG, f.getPageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageSizeTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "a", "b", "c" });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+        t.setField(2, new IntField(-i));
+        return t;
+    }
+
+    /**
+     * A PaxPage holds as many tuples as a HeapPage and round-trips through
+     * getPageData()
+     */
+    @Test public void insertAndReload() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        int slots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        assertEquals(slots, page.getNumEmptySlots());
+        for (int i = 0; i < slots; i++)
+            page.insertTuple(tuple(i));
+        assertEquals(0, page.getNumEmptySlots());
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        int i = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertTrue(TestUtil.compareTuples(tuple(i), t));
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            i++;
+        }
+        assertEquals(slots, i);
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Each field is stored contiguously in its own minipage
+     */
+    @Test public void minipages() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        page.insertTuple(tuple(7));
+        page.insertTuple(tuple(8));
+        byte[] data = page.getPageData();
+        int slots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        int header = (slots + 7) / 8;
+        // field a of slots 0 and 1 are adjacent, right after the header
+        assertEquals(7, data[header + 3]);
+        assertEquals(8, data[header + 7]);
+        // field c follows the minipages of a and b
+        int c = header + slots * (Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen());
+        assertEquals((byte) -8, data[c + 7]);
+    }
+
+    /**
+     * Unit test for PaxPage.iterator(int[], TupleDesc)
+     */
+    @Test public void projection() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        for (int i = 0; i < 5; i++)
+            page.insertTuple(tuple(i));
+        Tuple gone = new Tuple(td);
+        gone.setRecordId(new RecordId(pid, 2));
+        page.deleteTuple(gone);
+
+        TupleDesc projected = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        Iterator<Tuple> it = page.iterator(new int[] { 2, 0 }, projected);
+        ArrayList<Integer> seen = new ArrayList<Integer>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(projected, t.getTupleDesc());
+            int a = ((IntField) t.getField(1)).getValue();
+            assertEquals(-a, ((IntField) t.getField(0)).getValue());
+            assertEquals(a, t.getRecordId().getTupleNumber());
+            seen.add(a);
+        }
+        assertEquals(4, seen.size());
+        assertTrue(!seen.contains(2));
+    }
+
+    /**
+     * A PaxFile answers an aggregate through a projecting SeqScan
+     */
+    @Test public void aggregate() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        PaxFile pf = new PaxFile(f, td);
+        Database.getCatalog().addTable(pf, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int rows = 1000;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, pf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, pf.getId(), "t", new int[] { 2 });
+        assertEquals(1, scan.getTupleDesc().numFields());
+        Aggregate agg = new Aggregate(scan, 0, -1, Aggregator.Op.SUM);
+        agg.open();
+        assertTrue(agg.hasNext());
+        assertEquals(-rows * (rows - 1) / 2, ((IntField) agg.next().getField(0)).getValue());
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
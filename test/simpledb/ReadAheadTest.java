@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 10;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void createFile() throws Exception {
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        assertEquals(PAGES, hf.numPages());
+        bp = Database.resetBufferPool(PAGES + 5);
+        bp.setPrefetchWindow(4);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Sequential access prefetches the next window of pages, and using or
+     * discarding them is counted
+     */
+    @Test public void sequential() throws Exception {
+        ReadAhead ra = new ReadAhead(hf.getId());
+        ra.pageAccessed(0, PAGES);
+        BufferPool.awaitPrefetches();
+        assertEquals(4, bp.getPrefetchIssued());
+
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPrefetchHits());
+        bp.discardPage(new HeapPageId(hf.getId(), 4));
+        assertEquals(1, bp.getPrefetchWasted());
+
+        // moving on by one page only requests the page newly in the window
+        ra.pageAccessed(1, PAGES);
+        BufferPool.awaitPrefetches();
+        assertEquals(5, bp.getPrefetchIssued());
+    }
+
+    /**
+     * The window stops at the end of the file
+     */
+    @Test public void endOfFile() throws Exception {
+        ReadAhead ra = new ReadAhead(hf.getId());
+        for (int i = 0; i < PAGES; i++) {
+            ra.pageAccessed(i, PAGES);
+            BufferPool.awaitPrefetches();
+        }
+        assertEquals(PAGES - 1, bp.getPrefetchIssued());
+        assertEquals(PAGES, hf.numPages());
+    }
+
+    /**
+     * A jump ends the sequential run
+     */
+    @Test public void nonSequential() throws Exception {
+        bp.setPrefetchWindow(2);
+        ReadAhead ra = new ReadAhead(hf.getId());
+        ra.pageAccessed(5, PAGES);
+        ra.pageAccessed(2, PAGES);
+        BufferPool.awaitPrefetches();
+        assertEquals(0, bp.getPrefetchIssued());
+
+        ra.pageAccessed(3, PAGES);
+        BufferPool.awaitPrefetches();
+        assertEquals(2, bp.getPrefetchIssued());
+    }
+
+    /**
+     * A prefetch never evicts a page that is being modified
+     */
+    @Test public void fullPool() throws Exception {
+        bp = Database.resetBufferPool(2);
+        HeapPage p0 = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        HeapPage p1 = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        p0.markDirty(true, tid);
+
+        bp.prefetch(new HeapPageId(hf.getId(), 2));
+        BufferPool.awaitPrefetches();
+        assertEquals(0, bp.getPrefetchIssued());
+        assertTrue(bp.getPage(tid, p1.getId(), Permissions.READ_WRITE) == p1);
+    }
+
+    /**
+     * A full scan through SeqScan uses the prefetched pages
+     */
+    @Test public void scan() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * PAGES, count);
+        BufferPool.awaitPrefetches();
+        assertEquals(bp.getPrefetchIssued(), bp.getPrefetchHits() + bp.getPrefetchWasted());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(int from, int to) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, 0 }));
+        }
+        t.commit();
+    }
+
+    private int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    /** Restart the database, dropping the buffer pool, and recover */
+    private void crash(int threads) throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed pages whose writes were lost are redone from the log, the
+     * pages split among several threads
+     */
+    @Test public void redoLostWrites() throws Exception {
+        insert(0, 2500);
+        insert(2500, 3000);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[(int) raf.length()]);
+        }
+        crash(4);
+        assertEquals(3000, count());
+    }
+
+    /** Pages committed with the page cleaner on survive a crash */
+    @Test public void redoPageCleanerCommits() throws Exception {
+        Database.getBufferPool().setPageCleaner(true);
+        insert(0, 1000);
+        insert(1000, 1500);
+        crash(2);
+        assertEquals(1500, count());
+    }
+
+    /**
+     * A checkpoint taken while the page cleaner still holds committed pages
+     * records them as dirty, and recovery redoes them from before the
+     * checkpoint
+     */
+    @Test public void redoDirtyPagesAcrossCheckpoint() throws Exception {
+        Database.getBufferPool().setPageCleaner(true);
+        insert(0, 1000);
+        Database.getLogFile().logCheckpoint();
+        insert(1000, 1500);
+        crash(2);
+        assertEquals(1500, count());
+    }
+
+    /**
+     * Checkpoints taken while the page cleaner still holds committed pages
+     * list no finished transaction as live, and keep truncating the log
+     */
+    @Test public void checkpointsForgetFinishedTransactions() throws Exception {
+        Database.getBufferPool().setPageCleaner(true);
+        LogFile log = Database.getLogFile();
+        insertOneByOne(0, 10);
+        log.force();
+        long round = log.logFile.length();
+        for (int i = 1; i < 40; i++) {
+            log.logCheckpoint();
+            assertEquals(0, activeAtCheckpoint(log));
+            // pages not yet cleaned hold back only the last few rounds
+            assertTrue(log.logFile.length() < 4 * round);
+            insertOneByOne(i * 10, i * 10 + 10);
+        }
+        BufferPool.awaitCleaning();
+        log.logCheckpoint();
+        assertEquals(0, activeAtCheckpoint(log));
+        assertTrue(log.logFile.length() < round);
+        crash(1);
+        assertEquals(400, count());
+    }
+
+    /** Insert each tuple in a transaction of its own */
+    private void insertOneByOne(int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            insert(i, i + 1);
+        }
+    }
+
+    /** @return the number of transactions the last checkpoint lists as live */
+    private static int activeAtCheckpoint(LogFile log) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(log.logFile, "r")) {
+            raf.seek(raf.readLong());
+            assertEquals(LogFile.CHECKPOINT_RECORD, raf.readInt());
+            raf.readLong();
+            return raf.readInt();
+        }
+    }
+
+    /**
+     * A record the crash cut short is dropped, and the log is appended to
+     * after the last whole record
+     */
+    @Test public void tornRecord() throws Exception {
+        insert(0, 100);
+        Database.getLogFile().force();
+        try (RandomAccessFile raf = new RandomAccessFile(Database.getLogFile().logFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(LogFile.UPDATE_RECORD);
+            raf.writeLong(42);
+        }
+        crash(1);
+        assertEquals(100, count());
+        insert(100, 200);
+        crash(1);
+        assertEquals(200, count());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
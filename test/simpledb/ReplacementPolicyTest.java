@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId p(int i) {
+        return new HeapPageId(1, i);
+    }
+
+    private static void add(ReplacementPolicy policy, int... pages) {
+        for (int i : pages)
+            policy.pageAdded(p(i));
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance
+     */
+    @Test public void clock() {
+        ReplacementPolicy policy = new ClockPolicy();
+        add(policy, 0, 1, 2);
+        // every bit is set: the first sweep clears them and the second stops at 0
+        assertEquals(p(0), policy.victim(pid -> true));
+        policy.pageRemoved(p(0));
+        policy.pageAccessed(p(1));
+        assertEquals(p(2), policy.victim(pid -> true));
+        assertEquals(p(1), policy.victim(pid -> !pid.equals(p(2))));
+        assertNull(policy.victim(pid -> false));
+    }
+
+    /**
+     * LRU-2 evicts pages referenced once before pages referenced twice, and
+     * remembers evicted pages
+     */
+    @Test public void lruK() {
+        ReplacementPolicy policy = new LruKPolicy(2, 10);
+        add(policy, 0, 1, 2);
+        policy.pageAccessed(p(0));
+        policy.pageAccessed(p(1));
+        // 2 was referenced once; then 0's second-to-last reference is oldest
+        assertEquals(p(2), policy.victim(pid -> true));
+        policy.pageRemoved(p(2));
+        assertEquals(p(0), policy.victim(pid -> true));
+        policy.pageAccessed(p(0));
+        assertEquals(p(1), policy.victim(pid -> true));
+        policy.pageRemoved(p(1));
+
+        // 2 comes back with its first reference remembered
+        add(policy, 3);
+        add(policy, 2);
+        assertEquals(p(3), policy.victim(pid -> true));
+    }
+
+    /**
+     * LRU-K does not evict a page referenced once within the correlated
+     * reference period while an older page can go instead
+     */
+    @Test public void lruKCorrelatedPeriod() {
+        ReplacementPolicy policy = new LruKPolicy(2, 8);
+        add(policy, 0);
+        policy.pageAccessed(p(0));
+        add(policy, 1);
+        // 1 has a single reference, but it is the most recent one
+        assertEquals(p(1), policy.victim(pid -> true));
+        for (int i = 0; i < 3; i++)
+            policy.pageAccessed(p(0));
+        add(policy, 2, 3, 4);
+        assertEquals(p(1), policy.victim(pid -> true));
+        policy.pageRemoved(p(1));
+        assertEquals(p(0), policy.victim(pid -> true));
+    }
+
+    /**
+     * 2Q only promotes pages that come back after being evicted from A1in,
+     * so a scan does not displace them
+     */
+    @Test public void twoQ() {
+        ReplacementPolicy policy = new TwoQPolicy(4);
+        add(policy, 0);
+        policy.pageRemoved(p(0));
+        add(policy, 0);       // remembered on A1out: goes to Am
+        add(policy, 1, 2, 3); // A1in
+        for (int i = 0; i < 10; i++)
+            policy.pageAccessed(p(1)); // hits on A1in do not promote
+        for (int scan = 4; scan < 20; scan++) {
+            PageId victim = policy.victim(pid -> true);
+            assertTrue(!victim.equals(p(0)));
+            policy.pageRemoved(victim);
+            add(policy, scan);
+        }
+    }
+
+    /**
+     * With LRU-K, a page the workload keeps coming back to stays cached
+     * while a large table is scanned through a small pool
+     */
+    @Test public void hotPageSurvivesScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(4, new LruKPolicy(2, 4));
+        bp.setPrefetchWindow(0);
+        TransactionId tid = new TransactionId();
+        HeapPageId hot = new HeapPageId(small.getId(), 0);
+        for (int i = 0; i < big.numPages(); i++) {
+            bp.getPage(tid, hot, Permissions.READ_ONLY);
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(big.numPages() - 1, bp.getHits());
+        assertEquals(big.numPages() + 1, bp.getMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
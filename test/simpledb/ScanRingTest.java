@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanRingTest extends SimpleDbTestBase {
+
+    private static int scan(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A scan of a table larger than the pool only cycles through the ring,
+     * so pages other transactions use stay cached
+     */
+    @Test public void scanKeepsWorkingSet() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+        BufferPool bp = Database.resetBufferPool(20);
+        bp.setPrefetchWindow(0);
+        bp.setScanRingPages(4);
+        assertTrue(big.numPages() > 20);
+        assertTrue(small.numPages() <= 16);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(20000, scan(big, tid));
+        long hits = bp.getHits();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(small.numPages(), bp.getHits() - hits);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Without the ring, the same scan evicts every page of the working set
+     */
+    @Test public void scanWithoutRing() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+        BufferPool bp = Database.resetBufferPool(20);
+        bp.setPrefetchWindow(0);
+        bp.setScanRingPages(0);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(20000, scan(big, tid));
+        long hits = bp.getHits();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(0, bp.getHits() - hits);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page a scan brought in joins the main pool once something other
+     * than a scan asks for it
+     */
+    @Test public void pointAccessPromotes() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        BufferPool bp = Database.resetBufferPool(20);
+        bp.setPrefetchWindow(0);
+        bp.setScanRingPages(4);
+
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(big.getId(), 0);
+        bp.getPage(tid, first, Permissions.READ_ONLY, true);
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(20000, scan(big, tid));
+        long hits = bp.getHits();
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHits() - hits);
+        assertTrue(bp.getCachedBytes() <= bp.getCapacityBytes());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
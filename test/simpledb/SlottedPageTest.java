@@ -0,0 +1,196 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private ArrayList<Tuple> contents(SlottedPage page) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            result.add(it.next());
+        return result;
+    }
+
+    /**
+     * Unit test for SlottedPage.insertTuple() and round-tripping through
+     * getPageData()
+     */
+    @Test public void insertAndReload() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        assertEquals(0, contents(page).size());
+        for (int i = 0; i < 10; i++) {
+            Tuple t = tuple(i, "name" + i);
+            page.insertTuple(t);
+            assertEquals(i, t.getRecordId().getTupleNumber());
+        }
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        ArrayList<Tuple> tuples = contents(copy);
+        assertEquals(10, tuples.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(TestUtil.compareTuples(tuple(i, "name" + i), tuples.get(i)));
+            assertEquals(i, tuples.get(i).getRecordId().getTupleNumber());
+        }
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Short strings take only their own length, so many more tuples fit than
+     * on a HeapPage with fixed-size slots
+     */
+    @Test public void variableLength() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "bob")))
+            page.insertTuple(tuple(n++, "bob"));
+        // 4 (int) + 2 + 3 (string) + 4 (slot) bytes per tuple
+        assertEquals((BufferPool.getPageSize() - 4) / 13, n);
+        // the 10 bytes left take exactly one tuple with an empty string
+        assertEquals(1, page.getNumEmptySlots());
+        page.insertTuple(tuple(n, ""));
+        assertEquals(0, page.getNumEmptySlots());
+        assertTrue(n > 10 * BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1));
+    }
+
+    /**
+     * Unit test for SlottedPage.deleteTuple(): slots are reused and the
+     * holes left behind are reclaimed by compaction
+     */
+    @Test public void deleteAndCompact() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        String longName = "";
+        for (int i = 0; i < 100; i++)
+            longName += "x";
+        while (page.hasRoomFor(tuple(0, longName))) {
+            Tuple t = tuple(inserted.size(), longName);
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        assertFalse(page.hasRoomFor(tuple(0, longName)));
+
+        // free every other record; the space is fragmented into holes
+        for (int i = 0; i < inserted.size(); i += 2)
+            page.deleteTuple(inserted.get(i));
+
+        // a record twice as long only fits once the holes are merged
+        Tuple big = tuple(-1, longName + longName);
+        assertTrue(page.hasRoomFor(big));
+        page.insertTuple(big);
+        assertEquals(0, big.getRecordId().getTupleNumber());
+
+        // the survivors kept their slots and their contents
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        ArrayList<Tuple> tuples = contents(copy);
+        assertEquals(inserted.size() / 2 + 1, tuples.size());
+        for (Tuple t : tuples) {
+            int slot = t.getRecordId().getTupleNumber();
+            Tuple expected = slot == 0 ? big : inserted.get(slot);
+            assertTrue(TestUtil.compareTuples(expected, t));
+        }
+    }
+
+    /**
+     * Unit test for SlottedPage.deleteTuple() with false tuples
+     */
+    @Test(expected=DbException.class)
+        public void deleteNonexistentTuple() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a"));
+        Tuple t = tuple(2, "b");
+        t.setRecordId(new RecordId(pid, 1));
+        page.deleteTuple(t);
+    }
+
+    /**
+     * Unit test for SlottedPage.getBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a"));
+        page.setBeforeImage();
+        Tuple t = tuple(2, "b");
+        page.insertTuple(t);
+        page.deleteTuple(t);
+        page.insertTuple(tuple(3, "c"));
+
+        ArrayList<Tuple> before = contents(page.getBeforeImage());
+        assertEquals(1, before.size());
+        assertTrue(TestUtil.compareTuples(tuple(1, "a"), before.get(0)));
+    }
+
+    /**
+     * A HeapFile with slotted pages stores and returns tuples through the
+     * buffer pool
+     */
+    @Test public void heapFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, false, HeapFile.PageFormat.SLOTTED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int rows = 2000;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, "n" + i));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.numPages() < 10);
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals("n" + ((IntField) t.getField(0)).getValue(),
+                    ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
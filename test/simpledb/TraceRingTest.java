@@ -0,0 +1,61 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class TraceRingTest {
+
+    /**
+     * The ring keeps the most recent events, oldest first
+     */
+    @Test public void keepsLastEvents() {
+        TraceRing ring = new TraceRing(4);
+        for (int i = 0; i < 6; i++) {
+            ring.add("e" + i, i, null, null);
+        }
+        assertEquals(6, ring.getRecorded());
+        List<TraceRing.Event> events = ring.events();
+        assertEquals(4, events.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("e" + (i + 2), events.get(i).getName());
+            assertEquals(i + 2, events.get(i).getArgs()[0]);
+        }
+        assertTrue(events.get(3).toString().endsWith("e5 5"));
+    }
+
+    /**
+     * Events recorded by several threads at once are all counted, and the
+     * ring holds the last of them
+     */
+    @Test public void concurrentWriters() throws Exception {
+        final TraceRing ring = new TraceRing(64);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    ring.add("lock.grant", i, null, null);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(4000, ring.getRecorded());
+        assertEquals(64, ring.events().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TraceRingTest.class);
+    }
+}
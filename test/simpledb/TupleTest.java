@@ -3,6 +3,8 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import junit.framework.JUnit4TestAdapter;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
@@ -57,6 +59,26 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for a Tuple whose fields are decoded lazily from a buffer
+     */
+    @Test public void lazyFields() {
+        TupleDesc td = Utility.getTupleDesc(3);
+        ByteBuffer buf = ByteBuffer.allocate(4 + td.getSize());
+        buf.putInt(0, -1);
+        buf.putInt(4, 10);
+        buf.putInt(8, 20);
+        buf.putInt(12, 30);
+
+        Tuple tup = new Tuple(td, buf, 4);
+        assertEquals(new IntField(30), tup.getField(2));
+        assertEquals(new IntField(10), tup.getField(0));
+
+        tup.setField(1, new IntField(-20));
+        assertEquals(new IntField(-20), tup.getField(1));
+        assertEquals("10\t-20\t30", tup.toString());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,80 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent scans of one table take shared locks and so make
+ * progress in parallel instead of serializing on exclusive page locks.
+ */
+public class ConcurrentScanTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int ROWS = 3000;
+
+    private static class Scanner extends Thread {
+        private final int tableId;
+        private final CyclicBarrier barrier;
+        int count = 0;
+        Throwable exception = null;
+
+        Scanner(int tableId, CyclicBarrier barrier) {
+            this.tableId = tableId;
+            this.barrier = barrier;
+        }
+
+        public void run() {
+            try {
+                Transaction t = new Transaction();
+                t.start();
+                SeqScan scan = new SeqScan(t.getId(), tableId, "");
+                scan.open();
+                boolean waited = false;
+                while (scan.hasNext()) {
+                    scan.next();
+                    count++;
+                    if (!waited) {
+                        // every scanner holds a lock on the first page here;
+                        // all must arrive for any of them to continue
+                        barrier.await(10, TimeUnit.SECONDS);
+                        waited = true;
+                    }
+                }
+                scan.close();
+                t.commit();
+            } catch (Throwable e) {
+                exception = e;
+            }
+        }
+    }
+
+    @Test public void testConcurrentScans() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        Scanner[] scanners = new Scanner[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            scanners[i] = new Scanner(f.getId(), barrier);
+            scanners[i].start();
+        }
+        for (Scanner s : scanners) {
+            s.join(60 * 1000);
+            assertFalse("scanner did not finish", s.isAlive());
+            if (s.exception != null)
+                throw new RuntimeException("Scanner thread threw an exception.", s.exception);
+            assertEquals(ROWS, s.count);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ConcurrentScanTest.class);
+    }
+}
@@ -1,5 +1,8 @@
 package simpledb.systemtest;
 
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
 import org.junit.Before;
 
 import simpledb.Database;
@@ -16,5 +19,14 @@ public class SimpleDbTestBase {
 	@Before	public void setUp() throws Exception {					
 		Database.reset();
 	}
+
+	/**
+	 * Fail a test that completed a transaction while it still had a page
+	 * pinned, e.g. by an iterator it did not close.
+	 */
+	@After public void checkPins() {
+		assertTrue("pages left pinned: " + Database.getBufferPool().getPinLeaks(),
+				Database.getBufferPool().getPinLeaks().isEmpty());
+	}
 	
 }